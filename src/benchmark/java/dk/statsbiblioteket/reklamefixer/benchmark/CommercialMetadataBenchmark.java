@@ -0,0 +1,197 @@
+package dk.statsbiblioteket.reklamefixer.benchmark;
+
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.MetadataEngine;
+import dk.statsbiblioteket.util.xml.DOM;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import javax.xml.transform.TransformerException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of reading, fixing and generating commercial metadata, the per object CPU cost of a run.
+ *
+ * The inputs are the bundled cinema and TV2 examples, scaled by repeating their last pbcoreExtension element so the
+ * documents hold scale extension elements. Run with the GC profiler to see the allocation rate:
+ * <pre>java -jar target/doms-reklame-metadata-fixer-1.0-SNAPSHOT-benchmarks.jar -prof gc</pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommercialMetadataBenchmark {
+
+    private static final String UUID = "uuid:00000000-0000-0000-0000-000000000000";
+    private static final Pattern LAST_EXTENSION = Pattern.compile(
+            "(?s).*(<(?:\\w+:)?pbcoreExtension>.*?</(?:\\w+:)?pbcoreExtension>)");
+
+    @Param({"cinema", "tv2"})
+    public String example;
+
+    @Param({"1", "100"})
+    public int scale;
+
+    @Param({"DOM", "STAX"})
+    public MetadataEngine engine;
+
+    private String contents;
+    private byte[] contentBytes;
+    private CommercialMetadata parsedMetadata;
+    private String fixedContents;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        contents = scale(read("/benchmark/" + example + "-metadata-example.xml"), scale);
+        contentBytes = contents.getBytes(StandardCharsets.UTF_8);
+        parsedMetadata = engine.create(UUID, contents);
+        CommercialMetadata fixedMetadata = engine.create(UUID, contents);
+        fix(fixedMetadata);
+        fixedContents = fixedMetadata.getMetadata();
+    }
+
+    /**
+     * Metadata parsed anew for each call of a benchmark changing it. Kept out of the benchmark state, so the
+     * benchmarks that do not need it are not slowed down by a per invocation setup.
+     */
+    @State(Scope.Thread)
+    public static class UnfixedMetadata {
+        private CommercialMetadata metadata;
+
+        @Setup(Level.Invocation)
+        public void setUp(CommercialMetadataBenchmark benchmark) {
+            metadata = benchmark.engine.create(UUID, benchmark.contents);
+        }
+    }
+
+    /**
+     * Fixed metadata and a document of it, parsed anew for each call of a benchmark serialising them. The metadata
+     * caches its serialised form once generated, and a document is faster to serialise once it has been traversed,
+     * so both serialisation benchmarks start from documents that were never serialised, as in a run.
+     */
+    @State(Scope.Thread)
+    public static class FixedMetadata {
+        private CommercialMetadata metadata;
+        private Document document;
+
+        @Setup(Level.Invocation)
+        public void setUp(CommercialMetadataBenchmark benchmark) {
+            metadata = benchmark.engine.create(UUID, benchmark.contents);
+            fix(metadata);
+            document = DOM.stringToDOM(benchmark.fixedContents, true);
+        }
+    }
+
+    @Benchmark
+    public CommercialMetadata constructFromString() {
+        return engine.create(UUID, contents);
+    }
+
+    @Benchmark
+    public CommercialMetadata constructFromInputStream() {
+        // Only the DOM engine can read from a stream, so this measures the DOM engine for both engine parameters.
+        return new CommercialMetadata(UUID, new ByteArrayInputStream(contentBytes));
+    }
+
+    @Benchmark
+    public Document parseWithDomUtility() {
+        // Parsing with a new parser per document, as CommercialMetadata did before reusing parsers. Compare with
+        // constructFromString of the DOM engine. Measures the same for both engine parameters.
+        return DOM.stringToDOM(contents, true);
+    }
+
+    @Benchmark
+    public String getAssetType() {
+        return parsedMetadata.getAssetType();
+    }
+
+    @Benchmark
+    public boolean moveAlternativeTitle(UnfixedMetadata unfixed) {
+        return unfixed.metadata.moveAlternativeTitle();
+    }
+
+    @Benchmark
+    public boolean insertTv2Info(UnfixedMetadata unfixed) {
+        return unfixed.metadata.insertTv2Info();
+    }
+
+    @Benchmark
+    public String getMetadata(FixedMetadata fixed) {
+        return fixed.metadata.getMetadata();
+    }
+
+    @Benchmark
+    public String serialiseWithDomUtility(FixedMetadata fixed) throws TransformerException {
+        // Serialising with a new transformer per document, as CommercialMetadata did before reusing transformers.
+        // Compare with getMetadata of the DOM engine, which serialises to UTF-8 and decodes the result, so it does
+        // a little more work than this. Measures the same for both engine parameters.
+        return DOM.domToString(fixed.document);
+    }
+
+    @Benchmark
+    public String fixAndGetMetadata() {
+        CommercialMetadata metadata = engine.create(UUID, contents);
+        fix(metadata);
+        return metadata.getMetadata();
+    }
+
+    private static void fix(CommercialMetadata metadata) {
+        if (metadata.getAssetType().equals("Tv2reklamefilm")) {
+            metadata.insertTv2Info();
+        }
+        metadata.moveAlternativeTitle();
+    }
+
+    /**
+     * @return the contents with the last pbcoreExtension element repeated, so it occurs scale times.
+     */
+    static String scale(String contents, int scale) {
+        Matcher matcher = LAST_EXTENSION.matcher(contents);
+        if (scale <= 1 || !matcher.find()) {
+            return contents;
+        }
+        String extension = matcher.group(1);
+        StringBuilder result = new StringBuilder(contents.length() + scale * extension.length());
+        result.append(contents, 0, matcher.end(1));
+        for (int i = 1; i < scale; i++) {
+            result.append("\n    ").append(extension);
+        }
+        result.append(contents, matcher.end(1), contents.length());
+        return result.toString();
+    }
+
+    private static String read(String resource) throws IOException {
+        try (InputStream in = CommercialMetadataBenchmark.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Missing benchmark resource '" + resource + "'");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package dk.statsbiblioteket.reklamefixer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors running each task in a virtual thread of its own. Only built with the loom profile, as virtual
+ * threads need Java 21, and created by {@link TaskThreads#VIRTUAL}.
+ */
+final class VirtualThreadExecutors {
+
+    private VirtualThreadExecutors() {
+    }
+
+    /**
+     * @param threadName the name of the threads, followed by the number of each thread.
+     */
+    static ExecutorService create(String threadName) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(threadName, 1).factory());
+    }
+}
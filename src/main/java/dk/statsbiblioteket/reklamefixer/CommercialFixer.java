@@ -1,123 +1,700 @@
 package dk.statsbiblioteket.reklamefixer;
 
+import dk.statsbiblioteket.reklamefixer.configuration.InitializationFailedException;
 import dk.statsbiblioteket.reklamefixer.configuration.PropertyBasedRegistrarConfiguration;
 import dk.statsbiblioteket.reklamefixer.doms.DOMSClient;
 import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataQuerier;
 import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataUpdater;
+import dk.statsbiblioteket.reklamefixer.doms.DatastreamCache;
+import dk.statsbiblioteket.reklamefixer.doms.ObjectStateResolver;
+import dk.statsbiblioteket.reklamefixer.journal.ContentDigests;
+import dk.statsbiblioteket.reklamefixer.journal.DeadLetterFile;
+import dk.statsbiblioteket.reklamefixer.journal.HighWaterMark;
+import dk.statsbiblioteket.reklamefixer.journal.MetadataDiffFile;
+import dk.statsbiblioteket.reklamefixer.journal.RunJournal;
+import dk.statsbiblioteket.reklamefixer.metrics.Metrics;
+import dk.statsbiblioteket.reklamefixer.metrics.OperationMetrics;
+import dk.statsbiblioteket.reklamefixer.metrics.ProgressReporter;
+import dk.statsbiblioteket.reklamefixer.rules.FixRule;
+import dk.statsbiblioteket.reklamefixer.rules.FixRules;
+import dk.statsbiblioteket.reklamefixer.uuids.LineUuidSource;
+import dk.statsbiblioteket.reklamefixer.uuids.ModifiedSinceUuidSource;
+import dk.statsbiblioteket.reklamefixer.uuids.UuidSet;
+import dk.statsbiblioteket.reklamefixer.uuids.UuidSource;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CommercialFixer {
 
     private static final String UUIDS_FILENAME = "/commercial-uuids";
+    private static final int DEFAULT_WINDOW_SIZE = 500;
+    private static final String RESUME_OPTION = "resume";
+    private static final String UUIDS_OPTION = "uuids";
+    private static final String COLLECTION_OPTION = "collection";
+    private static final String VIEW_ANGLE_OPTION = "view-angle";
+    private static final String INCREMENTAL_OPTION = "incremental";
+    private static final String DRY_RUN_OPTION = "dry-run";
+    private static final int UUID_PAGE_SIZE = 1000;
     private static final Logger log = LoggerFactory.getLogger(CommercialFixer.class);
     private DOMSCommercialMetadataQuerier metadataQuerier;
     private DOMSCommercialMetadataUpdater metadataUpdater;
-    private List<String> commercialUuids;
+    private UuidSource uuidSource;
+    private int windowSize;
+    private OutcomeListener outcomeListener = OutcomeListener.NONE;
+    private Set<String> completedUuids = Collections.emptySet();
+    private ContentDigests contentDigests;
+    private DryRunReport dryRunReport;
+    private MetadataDiffFile diffFile;
+    private DeadLetterFile deadLetterFile;
+    private FixRules fixRules = FixRules.DEFAULT;
+    private TaskThreads objectTaskThreads;
+    private int maxConcurrentObjects;
+    private final OperationMetrics transform = Metrics.getInstance().operation("metadata.transform");
 
 
     public static void main(String[] args) {
+        CommandLine commandLine = parseArguments(args);
         PropertyBasedRegistrarConfiguration config = new PropertyBasedRegistrarConfiguration(
                 new File(System.getProperty("user.home"), "doms-reklamefixer.properties"));
-        CommercialFixer commercialFixer = new CommercialFixer(config);
+        DOMSClient domsClient = new DOMSClient(config);
+        HighWaterMark highWaterMark = createHighWaterMark(commandLine, config);
+        long modifiedSince = 0;
+        if (highWaterMark != null) {
+            modifiedSince = highWaterMark.read();
+            log.info("Processing objects modified after {} ({})", modifiedSince, new Date(modifiedSince));
+        }
+        UuidSource uuidSource = createUuidSource(commandLine, config, domsClient, modifiedSince);
+        CommercialFixer commercialFixer = new CommercialFixer(config, domsClient, uuidSource);
+        boolean dryRun = commandLine.hasOption(DRY_RUN_OPTION);
+
+        Metrics metrics = Metrics.getInstance();
+        OutcomeListener outcomeListener = metrics;
+        RunJournal journal = null;
+        File journalFile = config.getJournalFile();
+        if (commandLine.hasOption(RESUME_OPTION)) {
+            if (journalFile == null) {
+                throw new InitializationFailedException(
+                        "Cannot resume without a journal. Set 'doms-reklamefixer.journalFile'.");
+            }
+            commercialFixer.setCompletedUuids(RunJournal.readCompletedUuids(journalFile));
+        }
+        if (journalFile != null && !dryRun) {
+            journal = new RunJournal(journalFile, config.getJournalSyncEvery(), config.getJournalSyncIntervalMillis());
+            outcomeListener = OutcomeListener.all(journal, metrics);
+        }
+        commercialFixer.setOutcomeListener(outcomeListener);
+        ContentDigests contentDigests = null;
+        if (config.getDigestFile() != null && !dryRun) {
+            contentDigests = new ContentDigests(config.getDigestFile(), config.getFixRules());
+            commercialFixer.setContentDigests(contentDigests);
+        }
+
+        DatastreamCache datastreamCache = createDatastreamCache(config, domsClient);
+        if (datastreamCache != null) {
+            commercialFixer.setDatastreamCache(datastreamCache);
+        }
+
+        DeadLetterFile deadLetterFile = null;
+        File deadLetterPath = config.getDeadLetterFile();
+        if (deadLetterPath != null) {
+            deadLetterFile = new DeadLetterFile(deadLetterPath);
+            commercialFixer.setDeadLetterFile(deadLetterFile);
+        }
+
+        // A dry run writes neither the journal, the digests nor the high-water mark, as nothing is fixed in DOMS.
+        MetadataDiffFile diffFile = null;
+        if (dryRun) {
+            log.info("Dry run. Nothing is written to DOMS.");
+            if (config.getDiffFile() != null) {
+                diffFile = new MetadataDiffFile(config.getDiffFile());
+            }
+            commercialFixer.setDryRun(new DryRunReport(), diffFile);
+        }
+
+        ProgressReporter progressReporter = new ProgressReporter(metrics, config.getProgressIntervalSeconds());
+        try {
+            commercialFixer.fixAllCommercials();
+            if (highWaterMark != null && !dryRun) {
+                // Incremental runs always read the ids of a collection, see createHighWaterMark
+                advanceHighWaterMark(highWaterMark, ((ModifiedSinceUuidSource) uuidSource).getUntil(), metrics);
+            }
+        } finally {
+            progressReporter.close();
+            progressReporter.report();
+            writeMetrics(metrics, config.getMetricsFile());
+            commercialFixer.metadataQuerier.close();
+            uuidSource.close();
+            if (journal != null) {
+                journal.close();
+            }
+            if (contentDigests != null) {
+                contentDigests.close();
+            }
+            if (deadLetterFile != null) {
+                deadLetterFile.close();
+            }
+            if (diffFile != null) {
+                diffFile.close();
+            }
+            if (datastreamCache != null) {
+                datastreamCache.close();
+            }
+        }
+    }
+
+    /**
+     * @return the cache of retrieved datastreams if a cache directory is configured, otherwise null.
+     */
+    private static DatastreamCache createDatastreamCache(PropertyBasedRegistrarConfiguration config,
+                                                         DOMSClient domsClient) {
+        File directory = config.getDatastreamCacheDirectory();
+        if (directory == null) {
+            return null;
+        }
+        if (config.getStateCollectionPid() == null || config.getStateViewAngle() == null) {
+            throw new InitializationFailedException("Cannot validate the datastream cache without a collection. Set "
+                    + "'doms-reklamefixer.stateCollectionPid' and 'doms-reklamefixer.stateViewAngle'.");
+        }
+        return new DatastreamCache(directory, domsClient, config.getStateCollectionPid(), config.getStateViewAngle());
+    }
+
+    /**
+     * @return the high-water mark of incremental runs if --incremental is given, otherwise null.
+     */
+    private static HighWaterMark createHighWaterMark(CommandLine commandLine,
+                                                     PropertyBasedRegistrarConfiguration config) {
+        if (!commandLine.hasOption(INCREMENTAL_OPTION)) {
+            return null;
+        }
+        if (!commandLine.hasOption(COLLECTION_OPTION)) {
+            throw new InitializationFailedException("--" + INCREMENTAL_OPTION + " requires --" + COLLECTION_OPTION
+                    + ".");
+        }
+        File highWaterMarkFile = config.getHighWaterMarkFile();
+        if (highWaterMarkFile == null) {
+            throw new InitializationFailedException(
+                    "Cannot run incrementally without a high-water mark. Set 'doms-reklamefixer.highWaterMarkFile'.");
+        }
+        return new HighWaterMark(highWaterMarkFile);
+    }
+
+    /**
+     * Moves the high-water mark to the time the objects were processed up to, unless some objects failed. Failed
+     * objects are then processed again in the next run along with the objects modified since.
+     */
+    private static void advanceHighWaterMark(HighWaterMark highWaterMark, long until, Metrics metrics) {
+        long failures = metrics.getOutcomeCount(Outcome.FAILED);
+        if (failures > 0) {
+            log.warn("{} objects failed. Not moving the high-water mark, so they are processed again in the next run",
+                    failures);
+            return;
+        }
+        if (until != ModifiedSinceUuidSource.UNKNOWN_UNTIL) {
+            highWaterMark.write(until);
+            log.info("Moved the high-water mark to {} ({})", until, new Date(until));
+        }
+    }
+
+    /**
+     * @param modifiedSince with --collection, only objects modified after this time are processed.
+     * @return the ids given with --uuids, the ids of a collection given with --collection, or the bundled list of
+     * commercials if neither is given.
+     */
+    private static UuidSource createUuidSource(CommandLine commandLine, PropertyBasedRegistrarConfiguration config,
+                                               DOMSClient domsClient, long modifiedSince) {
+        if (commandLine.hasOption(UUIDS_OPTION) && commandLine.hasOption(COLLECTION_OPTION)) {
+            throw new InitializationFailedException("Give either --" + UUIDS_OPTION + " or --" + COLLECTION_OPTION
+                    + ", not both.");
+        }
+        if (commandLine.hasOption(COLLECTION_OPTION)) {
+            return new ModifiedSinceUuidSource(domsClient, commandLine.getOptionValue(COLLECTION_OPTION),
+                    commandLine.getOptionValue(VIEW_ANGLE_OPTION), modifiedSince, UUID_PAGE_SIZE);
+        }
+        if (!commandLine.hasOption(UUIDS_OPTION)) {
+            return LineUuidSource.forResource(UUIDS_FILENAME);
+        }
+        String uuids = commandLine.getOptionValue(UUIDS_OPTION);
+        if (uuids.equals("-")) {
+            return LineUuidSource.forStdin();
+        }
+        File uuidsFile = new File(uuids);
+        File deadLetterFile = config.getDeadLetterFile();
+        if (deadLetterFile != null && uuidsFile.getAbsoluteFile().equals(deadLetterFile.getAbsoluteFile())) {
+            throw new InitializationFailedException(
+                    "The dead letter file cannot be the list of ids to process. Move it before processing it.");
+        }
+        try {
+            return LineUuidSource.forFile(uuidsFile);
+        } catch (FileNotFoundException e) {
+            throw new InitializationFailedException("Ids file not found (" + uuidsFile.getAbsolutePath() + ")", e);
+        }
+    }
+
+    private static void writeMetrics(Metrics metrics, File metricsFile) {
+        if (metricsFile == null) {
+            return;
+        }
+        try {
+            metrics.writeTo(metricsFile);
+            log.info("Wrote metrics to '{}'", metricsFile.getAbsolutePath());
+        } catch (IOException e) {
+            log.error("Unable to write metrics to '{}'", metricsFile.getAbsolutePath(), e);
+        }
+    }
 
-        commercialFixer.fixAllCommercials();
+    private static CommandLine parseArguments(String[] args) {
+        Options options = new Options();
+        options.addOption("r", RESUME_OPTION, false,
+                "Skip objects that were completed in a previous run according to the journal.");
+        options.addOption("u", UUIDS_OPTION, true,
+                "File with the ids of the objects to process, such as a dead letter file, or - to read them from "
+                        + "stdin, instead of the bundled list of commercials. Only the part of each line before "
+                        + "the first tab is used.");
+        options.addOption("c", COLLECTION_OPTION, true,
+                "Process the objects of this DOMS collection, found with getIDsModified, instead of the bundled "
+                        + "list of commercials.");
+        options.addOption("v", VIEW_ANGLE_OPTION, true, "View angle used to find the objects of --collection.");
+        options.addOption("i", INCREMENTAL_OPTION, false,
+                "Only process the objects of --collection modified since the last run without failures, as kept in "
+                        + "the high-water mark file.");
+        options.addOption("n", DRY_RUN_OPTION, false,
+                "Retrieve and fix the objects without writing anything to DOMS, and report what the fixes would do. "
+                        + "The changes are written to the diff file, if configured.");
+        try {
+            return new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("doms-reklame-metadata.sh", options);
+            System.exit(1);
+            return null;
+        }
     }
 
 
     public CommercialFixer(PropertyBasedRegistrarConfiguration configuration) {
-        this(new DOMSClient(configuration));
+        this(configuration, new DOMSClient(configuration), LineUuidSource.forResource(UUIDS_FILENAME));
+    }
+
+    /**
+     * @param uuidSource the ids of the objects to process.
+     */
+    public CommercialFixer(PropertyBasedRegistrarConfiguration configuration, DOMSClient domsClient,
+                           UuidSource uuidSource) {
+        this(new DOMSCommercialMetadataQuerier(domsClient,
+                        configuration.getFetchThreads(), configuration.getMaxInFlightFetches(),
+                        configuration.getMetadataEngine()),
+                new DOMSCommercialMetadataUpdater(domsClient,
+                        new ObjectStateResolver(domsClient,
+                                configuration.getStateCollectionPid(), configuration.getStateViewAngle()),
+                        configuration.getUpdateBatchSize()),
+                uuidSource,
+                configuration.getPipelineWindowSize());
+        this.fixRules = configuration.getFixRules();
+        metadataQuerier.setViewBundleAngle(configuration.getViewBundleAngle());
+        metadataQuerier.setStreamDatastreams(configuration.isStreamDatastreams());
+        setObjectTasks(configuration.getObjectTaskThreads(), configuration.getMaxConcurrentObjects());
     }
 
     public CommercialFixer(DOMSClient domsClient) {
+        this(domsClient, DEFAULT_WINDOW_SIZE);
+    }
+
+    public CommercialFixer(DOMSClient domsClient, int windowSize) {
         this(new DOMSCommercialMetadataQuerier(domsClient),
                 new DOMSCommercialMetadataUpdater(domsClient),
-                fetchUuids());
+                LineUuidSource.forResource(UUIDS_FILENAME),
+                windowSize);
     }
 
     public CommercialFixer(DOMSCommercialMetadataQuerier metadataQuerier, DOMSCommercialMetadataUpdater metadataUpdater,
                            List<String> commercialUuids) {
+        this(metadataQuerier, metadataUpdater, commercialUuids, DEFAULT_WINDOW_SIZE);
+    }
+
+    public CommercialFixer(DOMSCommercialMetadataQuerier metadataQuerier, DOMSCommercialMetadataUpdater metadataUpdater,
+                           List<String> commercialUuids, int windowSize) {
+        this(metadataQuerier, metadataUpdater, UuidSource.of(commercialUuids), windowSize);
+    }
+
+    /**
+     * @param uuidSource the ids of the objects to process, read as the run proceeds.
+     * @param windowSize the maximum number of objects held in memory at a time. Each window of ids is retrieved,
+     *                   fixed and written back before the next window is retrieved.
+     */
+    public CommercialFixer(DOMSCommercialMetadataQuerier metadataQuerier, DOMSCommercialMetadataUpdater metadataUpdater,
+                           UuidSource uuidSource, int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive, was " + windowSize);
+        }
         this.metadataQuerier = metadataQuerier;
         this.metadataUpdater = metadataUpdater;
-        this.commercialUuids = commercialUuids;
+        this.uuidSource = uuidSource;
+        this.windowSize = windowSize;
     }
 
+    /**
+     * Sets the listener notified of the outcome of each object.
+     */
+    public void setOutcomeListener(OutcomeListener outcomeListener) {
+        this.outcomeListener = outcomeListener;
+        metadataQuerier.setOutcomeListener(outcomeListener);
+        metadataUpdater.setOutcomeListener(outcomeListener);
+    }
+
+    /**
+     * Sets the digests of contents known to be fixed, so objects found to need no fixing in a previous run are
+     * recognised without being parsed.
+     */
+    public void setContentDigests(ContentDigests contentDigests) {
+        this.contentDigests = contentDigests;
+        metadataQuerier.setContentDigests(contentDigests);
+    }
+
+    /**
+     * Sets the cache datastreams are read from before they are retrieved from DOMS.
+     */
+    public void setDatastreamCache(DatastreamCache datastreamCache) {
+        metadataQuerier.setDatastreamCache(datastreamCache);
+    }
+
+    /**
+     * Sets the file objects that fail, after any retries, are written to.
+     */
+    public void setDeadLetterFile(DeadLetterFile deadLetterFile) {
+        this.deadLetterFile = deadLetterFile;
+        metadataQuerier.setDeadLetterFile(deadLetterFile);
+        metadataUpdater.setDeadLetterFile(deadLetterFile);
+    }
+
+    /**
+     * Sets the rules fixing the metadata, replacing the fixes of cinema and TV 2 commercials applied by default.
+     */
+    public void setFixRules(FixRules fixRules) {
+        this.fixRules = fixRules;
+    }
+
+    /**
+     * Makes the run a dry run: the commercials are retrieved and fixed, but nothing is written to DOMS. What the fixes
+     * would do is counted in the report and, if a diff file is given, the changes are written to it.
+     * @param diffFile the file the changes are written to, or null.
+     */
+    public void setDryRun(DryRunReport dryRunReport, MetadataDiffFile diffFile) {
+        this.dryRunReport = dryRunReport;
+        this.diffFile = diffFile;
+    }
+
+    /**
+     * Processes each object in a task of its own, from retrieval to update, instead of in windows. Objects are then
+     * retrieved and updated one at a time by each task, regardless of the fetch threads and update batch size.
+     * @param taskThreads          the threads running the tasks, or null to process objects in windows.
+     * @param maxConcurrentObjects the maximum number of objects processed concurrently.
+     */
+    public void setObjectTasks(TaskThreads taskThreads, int maxConcurrentObjects) {
+        if (maxConcurrentObjects < 1) {
+            throw new IllegalArgumentException("Max concurrent objects must be positive, was " + maxConcurrentObjects);
+        }
+        this.objectTaskThreads = taskThreads;
+        this.maxConcurrentObjects = maxConcurrentObjects;
+    }
+
+    /**
+     * Sets the ids of objects completed in a previous run. These objects are skipped.
+     */
+    public void setCompletedUuids(Set<String> completedUuids) {
+        this.completedUuids = completedUuids;
+    }
+
+    /**
+     * Fixes all commercials by streaming them through retrieval, fixing and updating in windows of at most
+     * windowSize objects, so only one window of metadata is kept in memory at a time. With object tasks, each object
+     * is instead streamed through on its own, and at most maxConcurrentObjects objects are kept in memory. Ids given
+     * more than once are only processed the first time.
+     */
     public void fixAllCommercials() {
-        log.info("Retrieving commercial metadata.");
-        List<CommercialMetadata> allCommercialMetadata = metadataQuerier.retrieveMetadata(commercialUuids);
-        List<CommercialMetadata> cinemaCommercialMetadata = new ArrayList<>();
-        List<CommercialMetadata> tv2CommercialMetadata = new ArrayList<>();
+        if (objectTaskThreads == null) {
+            log.info("Fixing commercial metadata of {} in windows of {} objects.", uuidSource, windowSize);
+        } else {
+            log.info("Fixing commercial metadata of {} in tasks on {} threads, {} objects at a time.", uuidSource,
+                    objectTaskThreads.name().toLowerCase(Locale.ROOT), maxConcurrentObjects);
+        }
+        Map<FixRule, RuleStatistics> statistics = new HashMap<>();
+        for (FixRule rule : fixRules.getRules()) {
+            statistics.put(rule, new RuleStatistics());
+        }
 
-        for (CommercialMetadata commercial : allCommercialMetadata) {
-            String assetType = commercial.getAssetType();
-            if(assetType.equals("Biografreklamefilm")){
-                cinemaCommercialMetadata.add(commercial);
+        long size = uuidSource.size();
+        Metrics.getInstance().startRun(
+                size == UuidSource.UNKNOWN_SIZE ? UuidSource.UNKNOWN_SIZE : Math.max(0, size - completedUuids.size()));
+
+        List<String> window = new ArrayList<>(windowSize);
+        Set<String> seenUuids = new UuidSet();
+        int skipped = 0;
+        int duplicates = 0;
+        ObjectTasks objectTasks = objectTaskThreads == null ? null : new ObjectTasks(statistics);
+        try {
+            for (String uuid : uuidSource) {
+                if (completedUuids.contains(uuid)) {
+                    skipped++;
+                    continue;
+                }
+                if (!seenUuids.add(uuid)) {
+                    duplicates++;
+                    continue;
+                }
+                if (objectTasks != null) {
+                    objectTasks.submit(uuid);
+                    continue;
+                }
+                window.add(uuid);
+                if (window.size() == windowSize) {
+                    fixWindow(window, statistics);
+                    window = new ArrayList<>(windowSize);
+                }
+            }
+            if (objectTasks != null) {
+                objectTasks.awaitCompletion();
+            } else if (!window.isEmpty()) {
+                fixWindow(window, statistics);
             }
-            else if(assetType.equals("Tv2reklamefilm")){
-                tv2CommercialMetadata.add(commercial);
+        } finally {
+            if (objectTasks != null) {
+                objectTasks.shutdown();
             }
         }
-        log.info("Cinema commercial metadata retrieved: {}. Tv2 commercial metadata retrieved: {}.",
-                cinemaCommercialMetadata.size(), tv2CommercialMetadata.size());
 
-        List<CommercialMetadata> updatedCinemaCommercialMetadata = updateCinemaMetadata(cinemaCommercialMetadata);
-        List<CommercialMetadata> updatedTv2CommercialMetadata = updateTv2Metadata(tv2CommercialMetadata);
+        if (skipped > 0) {
+            log.info("Skipped {} objects completed in a previous run.", skipped);
+        }
+        if (duplicates > 0) {
+            log.info("Skipped {} duplicate ids.", duplicates);
+        }
+        for (FixRule rule : fixRules.getRules()) {
+            RuleStatistics ruleStatistics = statistics.get(rule);
+            log.info("Fix rule '{}' matched {} commercials. Metadata {} for {} commercials.", rule.getName(),
+                    ruleStatistics.matched.sum(), dryRunReport != null ? "would be updated" : "updated",
+                    ruleStatistics.changed.sum());
+        }
+        if (dryRunReport != null) {
+            dryRunReport.report();
+        }
+    }
 
+    private void fixWindow(List<String> uuids, Map<FixRule, RuleStatistics> statistics) {
+        log.debug("Retrieving commercial metadata for window of {} objects.", uuids.size());
         List<CommercialMetadata> updatedMetadata = new ArrayList<>();
-        updatedMetadata.addAll(updatedCinemaCommercialMetadata);
-        updatedMetadata.addAll(updatedTv2CommercialMetadata);
 
-        log.info("Updating metadata for {} cinema commercials and {} TV2 commercials.",
-                updatedCinemaCommercialMetadata.size(), updatedTv2CommercialMetadata.size());
+        for (CommercialMetadata commercial : metadataQuerier.retrieveMetadata(uuids)) {
+            if (dryRunReport != null) {
+                preview(commercial, statistics);
+                continue;
+            }
+            if (fixOrReportUnchanged(commercial, statistics)) {
+                updatedMetadata.add(commercial);
+            }
+        }
+
         if(updatedMetadata.size() > 0){
+            log.debug("Updating metadata for {} commercials.", updatedMetadata.size());
             metadataUpdater.updateMetadata(updatedMetadata);
         }
     }
 
-    private List<CommercialMetadata> updateCinemaMetadata(List<CommercialMetadata> commercialMetadata) {
-        List<CommercialMetadata> result = new ArrayList<>();
-        commercialMetadata.forEach(metadata -> {
-                        if(metadata.moveAlternativeTitle()){
-                            result.add(metadata);
-                        }
-                    });
-        return result;
+    /**
+     * Retrieves, fixes and updates one object.
+     */
+    private void fixObject(String uuid, Map<FixRule, RuleStatistics> statistics) {
+        CommercialMetadata commercial = metadataQuerier.retrieveObjectMetadata(uuid);
+        if (commercial == null) {
+            return;
+        }
+        if (dryRunReport != null) {
+            preview(commercial, statistics);
+            return;
+        }
+        if (fixOrReportUnchanged(commercial, statistics)) {
+            metadataUpdater.updateObjectMetadata(commercial);
+        }
     }
 
-    private List<CommercialMetadata> updateTv2Metadata(List<CommercialMetadata> commercialMetadata) {
-        List<CommercialMetadata> result = new ArrayList<>();
-        commercialMetadata.forEach(metadata -> {
-            boolean tv2InfoInserted = metadata.insertTv2Info();
-            boolean alternativeTitleMoved = metadata.moveAlternativeTitle();
-            if(tv2InfoInserted || alternativeTitleMoved){
-                result.add(metadata);
+    /**
+     * Fixes the commercial, and reports it as unchanged if the fixes do not change it. Failing fixes are reported,
+     * and do not stop the run.
+     * @return true if the metadata was changed, and must be written to DOMS.
+     */
+    private boolean fixOrReportUnchanged(CommercialMetadata commercial, Map<FixRule, RuleStatistics> statistics) {
+        String uuid = commercial.getUuid();
+        boolean changed;
+        try {
+            changed = fix(commercial, statistics);
+        } catch (RuntimeException e) {
+            log.error("Error while trying to fix '{}'. Writing object id to stdout.", uuid, e);
+            System.out.println(uuid + "\tFailed to fix object.");
+            if (deadLetterFile != null) {
+                deadLetterFile.failed(uuid, DeadLetterFile.FIX, e);
             }
-        });
-        return result;
+            outcomeListener.outcome(uuid, Outcome.FAILED);
+            return false;
+        }
+        if (changed) {
+            return true;
+        }
+        if (contentDigests != null) {
+            contentDigests.recordFixed(uuid, commercial.getSourceDigest());
+        }
+        outcomeListener.outcome(uuid, Outcome.UNCHANGED);
+        return false;
     }
 
-    private static ArrayList<String> fetchUuids() {
-        log.info("Fetching ids from '{}'", UUIDS_FILENAME);
-        InputStream uuidsStream = CommercialFixer.class.getResourceAsStream(UUIDS_FILENAME);
-        ArrayList<String> result = new ArrayList<String>();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(uuidsStream))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                result.add(line);
+    /**
+     * Applies the fix rules matching the commercial, in order.
+     * @return true if the metadata was changed.
+     */
+    private boolean fix(CommercialMetadata commercial, Map<FixRule, RuleStatistics> statistics) {
+        boolean changed = false;
+        long start = transform.start();
+        boolean transformed = false;
+        try {
+            for (FixRule rule : fixRules.getRules(commercial.getAssetType())) {
+                if (rule.matches(commercial)) {
+                    RuleStatistics ruleStatistics = statistics.get(rule);
+                    ruleStatistics.matched.increment();
+                    if (rule.apply(commercial)) {
+                        ruleStatistics.changed.increment();
+                        changed = true;
+                    }
+                }
             }
+            transformed = true;
+        } finally {
+            transform.stop(start, transformed);
+        }
+        return changed;
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException("Error trying to fetch ids from '" + UUIDS_FILENAME + "'.");
+    /**
+     * Fixes the commercial and records the result in the dry run report and diff file instead of writing it to DOMS.
+     * Failing fixes are reported, and do not stop the run.
+     */
+    private void preview(CommercialMetadata commercial, Map<FixRule, RuleStatistics> statistics) {
+        String uuid = commercial.getUuid();
+        boolean changed;
+        String assetType = null;
+        String before = null;
+        try {
+            assetType = commercial.getAssetType();
+            dryRunReport.retrieved(commercial);
+            if (diffFile != null) {
+                before = commercial.getMetadata();
+            }
+            changed = fix(commercial, statistics);
+        } catch (RuntimeException e) {
+            log.error("Error while trying to fix '{}'. Writing object id to stdout.", uuid, e);
+            System.out.println(uuid + "\tFailed to fix object.");
+            dryRunReport.failed(assetType);
+            outcomeListener.outcome(uuid, Outcome.FAILED);
+            return;
+        }
+        if (changed) {
+            dryRunReport.changed(assetType);
+            if (diffFile != null) {
+                diffFile.changed(uuid, assetType, before, commercial.getMetadata());
+            }
+            outcomeListener.outcome(uuid, Outcome.PREVIEWED);
+        } else {
+            outcomeListener.outcome(uuid, Outcome.UNCHANGED);
+        }
+    }
+
+    private static class RuleStatistics {
+        // Counted by concurrent object tasks.
+        private final LongAdder matched = new LongAdder();
+        private final LongAdder changed = new LongAdder();
+    }
+
+    /**
+     * Runs a task for each object, with at most maxConcurrentObjects tasks submitted and not yet completed. The
+     * limit is kept by a semaphore rather than by the threads, so it applies to virtual threads as well. When a task
+     * fails, no more objects are submitted, and the failure is thrown once the submitted tasks have completed.
+     */
+    private class ObjectTasks {
+        private final Map<FixRule, RuleStatistics> statistics;
+        private final ExecutorService executor;
+        private final Semaphore permits;
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        private ObjectTasks(Map<FixRule, RuleStatistics> statistics) {
+            this.statistics = statistics;
+            this.executor = objectTaskThreads.newExecutor(maxConcurrentObjects);
+            this.permits = new Semaphore(maxConcurrentObjects);
+        }
+
+        private void submit(String uuid) {
+            acquire(1);
+            if (failure.get() != null) {
+                permits.release();
+                awaitCompletion();
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        fixObject(uuid, statistics);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Waits until all submitted tasks have completed.
+         */
+        private void awaitCompletion() {
+            acquire(maxConcurrentObjects);
+            permits.release(maxConcurrentObjects);
+            RuntimeException e = failure.get();
+            if (e != null) {
+                throw new RuntimeException("Unexpected error while fixing metadata", e);
+            }
+        }
+
+        private void acquire(int count) {
+            try {
+                permits.acquire(count);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while fixing metadata", e);
+            }
+        }
+
+        private void shutdown() {
+            executor.shutdown();
         }
-        return result;
     }
 
 }
@@ -1,53 +1,113 @@
 package dk.statsbiblioteket.reklamefixer;
 
-import dk.statsbiblioteket.util.xml.DOM;
-import dk.statsbiblioteket.util.xml.XPathSelector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 import javax.xml.transform.TransformerException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 
 public class CommercialMetadata {
 
-    private static final String NAMESPACE = "http://www.pbcore.org/PBCore/PBCoreNamespace.html";
-    private static final XPathSelector NAMESPACE_SELECTOR = DOM.createXPathSelector(
-            "namespace", NAMESPACE
-    );
+    protected static final String NAMESPACE = "http://www.pbcore.org/PBCore/PBCoreNamespace.html";
     private static final String XPATH_DOCUMENT = "/namespace:PBCoreDescriptionDocument";
     private static final String XPATH_ASSET_TYPE = XPATH_DOCUMENT + "/namespace:pbcoreAssetType";
     private static final String XPATH_ALTERNATIVE_TITLE =
             XPATH_DOCUMENT + "/namespace:pbcoreTitle/namespace:titleType[text()='alternative']/../namespace:title";
     private static final String XPATH_DESCRIPTION =
             XPATH_DOCUMENT + "/namespace:pbcoreDescription/namespace:description";
+    private static final String XPATH_PUBLISHER =
+            XPATH_DOCUMENT + "/namespace:pbcorePublisher[1]/namespace:publisher[1]";
+    private static final String XPATH_INSTANTIATION = XPATH_DOCUMENT + "/namespace:pbcoreInstantiation";
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private String uuid;
     private Document dom;
+    private String sourceDigest;
+    private byte[] metadataBytes;
+
+    // Nodes used by the fixes, each selected at most once per document and reused for all later reads and changes.
+    private Node assetTypeNode;
+    private boolean assetTypeSelected;
+    private Node alternativeTitleNode;
+    private Node descriptionNode;
 
     public CommercialMetadata(String uuid, String metadata) {
         this.uuid = uuid;
-        this.dom = DOM.stringToDOM(metadata, true);
+        this.dom = MetadataXml.parse(metadata);
     }
 
     public CommercialMetadata(String uuid, InputStream metadata) {
         this.uuid = uuid;
-        this.dom = DOM.streamToDOM(metadata, true);
+        try {
+            this.dom = MetadataXml.parse(metadata);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read metadata of " + uuid, e);
+        }
+    }
+
+    /**
+     * Parses the metadata as it is read.
+     * @throws IOException if the metadata cannot be read.
+     * @throws IllegalArgumentException if the metadata is not well-formed XML.
+     */
+    public CommercialMetadata(String uuid, Reader metadata) throws IOException {
+        this.uuid = uuid;
+        this.dom = MetadataXml.parse(metadata);
     }
 
+    /**
+     * For subclasses that do not keep the metadata as a DOM. Such subclasses must override all public methods reading
+     * or changing the metadata, as those use the DOM.
+     */
+    protected CommercialMetadata(String uuid) {
+        this.uuid = uuid;
+    }
+
+    /**
+     * @return the pbcoreAssetType, or null if the metadata has none.
+     */
     public String getAssetType() {
-        return selectNode(XPATH_ASSET_TYPE).getTextContent();
+        if (!assetTypeSelected) {
+            assetTypeNode = selectNode(XPATH_ASSET_TYPE);
+            assetTypeSelected = true;
+        }
+        return assetTypeNode == null ? null : assetTypeNode.getTextContent();
     }
 
     public String getUuid() {
         return uuid;
     }
 
+    /**
+     * @return the digest of the contents this metadata was parsed from, or null if it was not computed.
+     */
+    public String getSourceDigest() {
+        return sourceDigest;
+    }
+
+    public void setSourceDigest(String sourceDigest) {
+        this.sourceDigest = sourceDigest;
+    }
+
 
+    /**
+     * Moves the alternative title to the description, leaving the alternative title empty. Metadata without a
+     * description is left unchanged, so the alternative title is not lost.
+     * @return true if the metadata was changed.
+     */
     public boolean moveAlternativeTitle() {
+        if (getDescriptionNode() == null) {
+            log.warn("Metadata for {} has no description. The alternative title is not moved.", getUuid());
+            return false;
+        }
+        metadataChanged();
         String alternativeTitle = getAndRemoveAlternativeTitle();
         if(alternativeTitle.equals("")){
             log.debug("Alternative title for {} is empty. Nothing is moved.", getUuid());
@@ -58,7 +118,7 @@ public class CommercialMetadata {
     }
 
     private String getAndRemoveAlternativeTitle() {
-        Node titleNode = selectNode(XPATH_ALTERNATIVE_TITLE);
+        Node titleNode = getAlternativeTitleNode();
         String result = titleNode.getTextContent();
         titleNode.setTextContent("");
 
@@ -66,20 +126,46 @@ public class CommercialMetadata {
     }
 
     public String getAlternativeTitle() {
-        Node titleNode = selectNode(XPATH_ALTERNATIVE_TITLE);
+        Node titleNode = getAlternativeTitleNode();
         String result = titleNode.getTextContent();
 
         return result;
     }
 
     public String getDescription() {
-        Node descriptionNode = selectNode(XPATH_DESCRIPTION);
-        return descriptionNode.getTextContent();
+        return getDescriptionNode().getTextContent();
+    }
+
+    /**
+     * @return true if the metadata has a title group with the title type alternative.
+     */
+    public boolean hasAlternativeTitle() {
+        return getAlternativeTitleNode() != null;
+    }
+
+    /**
+     * @return true if the metadata has a pbcoreInstantiation.
+     */
+    public boolean hasInstantiation() {
+        return selectNode(XPATH_INSTANTIATION) != null;
     }
 
     private void setDescription(String text) {
-        Node descriptionNode = selectNode(XPATH_DESCRIPTION);
-        descriptionNode.setTextContent(text);
+        getDescriptionNode().setTextContent(text);
+    }
+
+    private Node getAlternativeTitleNode() {
+        if (alternativeTitleNode == null) {
+            alternativeTitleNode = selectNode(XPATH_ALTERNATIVE_TITLE);
+        }
+        return alternativeTitleNode;
+    }
+
+    private Node getDescriptionNode() {
+        if (descriptionNode == null) {
+            descriptionNode = selectNode(XPATH_DESCRIPTION);
+        }
+        return descriptionNode;
     }
 
 
@@ -91,7 +177,7 @@ public class CommercialMetadata {
      * @return true if information is added. false if information already exists.
      */
     public boolean insertTv2Info() {
-        Node publisherNode = selectNode("/namespace:PBCoreDescriptionDocument/namespace:pbcorePublisher[1]/namespace:publisher[1]");
+        Node publisherNode = selectNode(XPATH_PUBLISHER);
         if(publisherNode != null && publisherNode.getTextContent().equals("tv2d")){
             log.debug("Publisher node already exists for {}. " +
                     "Assumes that all TV2 info has already been added.", getUuid());
@@ -99,11 +185,12 @@ public class CommercialMetadata {
         }
 
         Node documentNode = selectNode(XPATH_DOCUMENT);
-        Node successorNode = selectNode("/namespace:PBCoreDescriptionDocument/namespace:pbcoreInstantiation");
+        Node successorNode = selectNode(XPATH_INSTANTIATION);
 
         Node pbcorePublisher1 = createPbcorePublisherNode("tv2d", "channel_name");
         Node pbcorePublisher2 = createPbcorePublisherNode("TV 2", "kanalnavn");
 
+        metadataChanged();
         documentNode.insertBefore(pbcorePublisher2, successorNode);
         documentNode.insertBefore(pbcorePublisher1, pbcorePublisher2);
 
@@ -125,15 +212,44 @@ public class CommercialMetadata {
 
 
 
-    public Node selectNode(String xpath) {
-        return NAMESPACE_SELECTOR.selectNode(dom, xpath);
+    /**
+     * Selects a node of the DOM with an XPath expression where the prefix 'namespace' is bound to the PBCore
+     * namespace. Private, as subclasses need not keep a DOM to query.
+     */
+    private Node selectNode(String xpath) {
+        return CompiledXPaths.selectNode(dom, xpath);
     }
 
     public String getMetadata() {
+        return new String(getMetadataBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the metadata encoded as UTF-8. The metadata is serialised once, and the same array is returned until
+     * the metadata is changed, so it must not be modified.
+     */
+    public byte[] getMetadataBytes() {
+        if (metadataBytes == null) {
+            metadataBytes = serialise();
+        }
+        return metadataBytes;
+    }
+
+    /**
+     * @return the metadata serialised as UTF-8.
+     */
+    protected byte[] serialise() {
         try {
-            return DOM.domToString(dom);
+            return MetadataXml.serialise(dom);
         } catch (TransformerException e) {
             throw new RuntimeException("Unexpected error when generating metadata XML", e);
         }
     }
+
+    /**
+     * Drops the serialised metadata. Must be called by every method changing the metadata.
+     */
+    protected void metadataChanged() {
+        metadataBytes = null;
+    }
 }
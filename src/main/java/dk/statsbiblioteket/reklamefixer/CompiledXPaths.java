@@ -0,0 +1,80 @@
+package dk.statsbiblioteket.reklamefixer;
+
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Registry of compiled XPath expressions, where the prefix 'namespace' is bound to the PBCore namespace.
+ *
+ * Compiled expressions are not thread safe, so each registry is used by one thread at a time, taken from a pool of
+ * idle registries and returned to it after use. Each registry compiles each expression once and keeps it for later
+ * evaluations.
+ */
+final class CompiledXPaths {
+    private static final String PREFIX = "namespace";
+    private static final Deque<CompiledXPaths> IDLE_INSTANCES = new ConcurrentLinkedDeque<>();
+
+    private final XPath xpath;
+    private final Map<String, XPathExpression> expressions = new HashMap<>();
+
+    private CompiledXPaths() {
+        xpath = XPathFactory.newInstance().newXPath();
+        xpath.setNamespaceContext(new NamespaceContext() {
+            @Override
+            public String getNamespaceURI(String prefix) {
+                return PREFIX.equals(prefix) ? CommercialMetadata.NAMESPACE : XMLConstants.NULL_NS_URI;
+            }
+
+            @Override
+            public String getPrefix(String namespaceURI) {
+                return CommercialMetadata.NAMESPACE.equals(namespaceURI) ? PREFIX : null;
+            }
+
+            @Override
+            public Iterator<String> getPrefixes(String namespaceURI) {
+                return CommercialMetadata.NAMESPACE.equals(namespaceURI)
+                        ? Collections.singleton(PREFIX).iterator()
+                        : Collections.emptyIterator();
+            }
+        });
+    }
+
+    /**
+     * @return the first node selected by the expression, or null if no node is selected.
+     */
+    static Node selectNode(Node context, String expression) {
+        CompiledXPaths instance = IDLE_INSTANCES.poll();
+        if (instance == null) {
+            instance = new CompiledXPaths();
+        }
+        try {
+            return (Node) instance.compile(expression).evaluate(context, XPathConstants.NODE);
+        } catch (XPathExpressionException e) {
+            throw new IllegalArgumentException("Unable to evaluate XPath '" + expression + "'", e);
+        } finally {
+            IDLE_INSTANCES.push(instance);
+        }
+    }
+
+    private XPathExpression compile(String expression) throws XPathExpressionException {
+        XPathExpression result = expressions.get(expression);
+        if (result == null) {
+            result = xpath.compile(expression);
+            expressions.put(expression, result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,96 @@
+package dk.statsbiblioteket.reklamefixer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * What a dry run found, counted by asset type: the objects retrieved, the objects the fixes would change, the objects
+ * the fixes failed for, and the objects without an alternative title or a pbcoreInstantiation.
+ */
+public class DryRunReport {
+
+    private static final Logger log = LoggerFactory.getLogger(DryRunReport.class);
+    private static final String NO_ASSET_TYPE = "(none)";
+
+    private final Map<String, Counts> countsByAssetType = new TreeMap<>();
+
+    /**
+     * Records an object as it was retrieved, before it was fixed.
+     */
+    public synchronized void retrieved(CommercialMetadata metadata) {
+        Counts counts = counts(metadata.getAssetType());
+        counts.objects++;
+        if (!metadata.hasAlternativeTitle()) {
+            counts.withoutAlternativeTitle++;
+        }
+        if (!metadata.hasInstantiation()) {
+            counts.withoutInstantiation++;
+        }
+    }
+
+    public synchronized void changed(String assetType) {
+        counts(assetType).changed++;
+    }
+
+    public synchronized void failed(String assetType) {
+        counts(assetType).failed++;
+    }
+
+    public synchronized Set<String> getAssetTypes() {
+        return Collections.unmodifiableSet(countsByAssetType.keySet());
+    }
+
+    public synchronized long getObjects(String assetType) {
+        return find(assetType).objects;
+    }
+
+    public synchronized long getChanged(String assetType) {
+        return find(assetType).changed;
+    }
+
+    public synchronized long getFailed(String assetType) {
+        return find(assetType).failed;
+    }
+
+    public synchronized long getWithoutAlternativeTitle(String assetType) {
+        return find(assetType).withoutAlternativeTitle;
+    }
+
+    public synchronized long getWithoutInstantiation(String assetType) {
+        return find(assetType).withoutInstantiation;
+    }
+
+    /**
+     * Logs the counts of each asset type.
+     */
+    public synchronized void report() {
+        log.info("Dry run found objects of {} asset types. Nothing was written to DOMS.", countsByAssetType.size());
+        countsByAssetType.forEach((assetType, counts) -> log.info(
+                "  {}: {} objects, {} would change, {} failed, {} without alternative title, "
+                        + "{} without pbcoreInstantiation",
+                assetType, counts.objects, counts.changed, counts.failed, counts.withoutAlternativeTitle,
+                counts.withoutInstantiation));
+    }
+
+    private Counts counts(String assetType) {
+        return countsByAssetType.computeIfAbsent(assetType == null ? NO_ASSET_TYPE : assetType, key -> new Counts());
+    }
+
+    private Counts find(String assetType) {
+        Counts counts = countsByAssetType.get(assetType == null ? NO_ASSET_TYPE : assetType);
+        return counts == null ? new Counts() : counts;
+    }
+
+    private static class Counts {
+        private long objects;
+        private long changed;
+        private long failed;
+        private long withoutAlternativeTitle;
+        private long withoutInstantiation;
+    }
+}
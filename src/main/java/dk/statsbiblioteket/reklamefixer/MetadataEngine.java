@@ -0,0 +1,45 @@
+package dk.statsbiblioteket.reklamefixer;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * The ways commercial metadata can be read and fixed.
+ */
+public enum MetadataEngine {
+    /** Parses the metadata into a DOM and fixes it with XPath. */
+    DOM {
+        @Override
+        public CommercialMetadata create(String uuid, String contents) {
+            return new CommercialMetadata(uuid, contents);
+        }
+
+        @Override
+        public CommercialMetadata create(String uuid, Reader contents) throws IOException {
+            return new CommercialMetadata(uuid, contents);
+        }
+    },
+    /** Fixes the metadata while streaming over it, see {@link StaxCommercialMetadata}. */
+    STAX {
+        @Override
+        public CommercialMetadata create(String uuid, String contents) {
+            return new StaxCommercialMetadata(uuid, contents);
+        }
+    };
+
+    public abstract CommercialMetadata create(String uuid, String contents);
+
+    /**
+     * Creates the metadata from contents read as they arrive. Engines that need the contents as a whole read them
+     * into a String first.
+     */
+    public CommercialMetadata create(String uuid, Reader contents) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = contents.read(buffer)) >= 0) {
+            builder.append(buffer, 0, read);
+        }
+        return create(uuid, builder.toString());
+    }
+}
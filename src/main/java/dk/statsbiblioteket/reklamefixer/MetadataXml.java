@@ -0,0 +1,121 @@
+package dk.statsbiblioteket.reklamefixer;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Parses metadata into namespace aware DOMs and serialises DOMs into metadata, the same way as sbutil's DOM class,
+ * without creating a parser or transformer for each document.
+ *
+ * Parsers and transformers are not thread safe, so each is used by one thread at a time, taken from a pool of idle
+ * instances and returned to it after use, reset for the next document. The pool grows to the number of documents
+ * handled concurrently. A pool rather than an instance per thread, as object tasks on virtual threads use each thread
+ * for a single object. Documents are serialised into a buffer kept by each instance.
+ */
+final class MetadataXml {
+    private static final Deque<MetadataXml> IDLE_INSTANCES = new ConcurrentLinkedDeque<>();
+
+    private final DocumentBuilder documentBuilder;
+    private final Transformer transformer;
+    // Serialised documents are written to the same buffer, which grows to the size of the largest document.
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    private MetadataXml() {
+        try {
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(true);
+            documentBuilder = documentBuilderFactory.newDocumentBuilder();
+            transformer = TransformerFactory.newInstance().newTransformer();
+        } catch (ParserConfigurationException | TransformerConfigurationException e) {
+            throw new IllegalStateException("Unable to create XML parser and transformer", e);
+        }
+        configureTransformer();
+    }
+
+    private void configureTransformer() {
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+    }
+
+    /**
+     * @throws IllegalArgumentException if the metadata is not well-formed XML.
+     */
+    static Document parse(String metadata) {
+        try {
+            return parse(new InputSource(new StringReader(metadata)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unexpected error when reading a String", e);
+        }
+    }
+
+    /**
+     * @throws IOException              if the metadata cannot be read.
+     * @throws IllegalArgumentException if the metadata is not well-formed XML.
+     */
+    static Document parse(InputStream metadata) throws IOException {
+        return parse(new InputSource(metadata));
+    }
+
+    /**
+     * @throws IOException              if the metadata cannot be read.
+     * @throws IllegalArgumentException if the metadata is not well-formed XML.
+     */
+    static Document parse(Reader metadata) throws IOException {
+        return parse(new InputSource(metadata));
+    }
+
+    private static Document parse(InputSource metadata) throws IOException {
+        MetadataXml instance = borrow();
+        try {
+            return instance.documentBuilder.parse(metadata);
+        } catch (SAXException e) {
+            throw new IllegalArgumentException("Unable to parse metadata", e);
+        } finally {
+            instance.documentBuilder.reset();
+            IDLE_INSTANCES.push(instance);
+        }
+    }
+
+    /**
+     * @return the node serialised as UTF-8 without an XML declaration.
+     */
+    static byte[] serialise(Node node) throws TransformerException {
+        MetadataXml instance = borrow();
+        instance.output.reset();
+        try {
+            instance.transformer.transform(new DOMSource(node), new StreamResult(instance.output));
+            return instance.output.toByteArray();
+        } finally {
+            // Resetting drops the output properties, so they are set again for the next use.
+            instance.transformer.reset();
+            instance.configureTransformer();
+            IDLE_INSTANCES.push(instance);
+        }
+    }
+
+    private static MetadataXml borrow() {
+        MetadataXml instance = IDLE_INSTANCES.poll();
+        return instance == null ? new MetadataXml() : instance;
+    }
+}
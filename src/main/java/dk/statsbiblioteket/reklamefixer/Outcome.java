@@ -0,0 +1,32 @@
+package dk.statsbiblioteket.reklamefixer;
+
+/**
+ * The outcome of processing a single object.
+ */
+public enum Outcome {
+    /** The metadata was retrieved from DOMS. */
+    FETCHED(false),
+    /** The metadata was already correct, so nothing was written. */
+    UNCHANGED(true),
+    /** The fixed metadata was written to DOMS. */
+    UPDATED(true),
+    /** The fixed metadata differs from the retrieved metadata, but was not written, as the run is a dry run. */
+    PREVIEWED(false),
+    /** The object is not active, so it cannot be updated. */
+    NOT_ACTIVE(true),
+    /** Retrieving or updating the object failed. */
+    FAILED(false);
+
+    private final boolean completed;
+
+    Outcome(boolean completed) {
+        this.completed = completed;
+    }
+
+    /**
+     * @return true if no further processing is needed for an object with this outcome.
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+}
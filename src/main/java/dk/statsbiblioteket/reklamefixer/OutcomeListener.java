@@ -0,0 +1,22 @@
+package dk.statsbiblioteket.reklamefixer;
+
+/**
+ * Notified of the outcome of each object as it moves through retrieval, fixing and updating. May be called from
+ * several threads at once.
+ */
+public interface OutcomeListener {
+    OutcomeListener NONE = (uuid, outcome) -> { };
+
+    void outcome(String uuid, Outcome outcome);
+
+    /**
+     * @return a listener notifying each of the given listeners in turn.
+     */
+    static OutcomeListener all(OutcomeListener... listeners) {
+        return (uuid, outcome) -> {
+            for (OutcomeListener listener : listeners) {
+                listener.outcome(uuid, outcome);
+            }
+        };
+    }
+}
@@ -0,0 +1,464 @@
+package dk.statsbiblioteket.reklamefixer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Comment;
+import javax.xml.stream.events.DTD;
+import javax.xml.stream.events.EntityReference;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Commercial metadata fixed by streaming over the contents instead of building a DOM.
+ *
+ * The contents are read once when constructed, to find the values the fixes depend on. The fixes are recorded and
+ * applied in a single streaming pass when the metadata is generated. The fixes are the same as those of
+ * {@link CommercialMetadata}, and the generated metadata is byte for byte the metadata generated by it.
+ */
+public class StaxCommercialMetadata extends CommercialMetadata {
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    private static final String DOCUMENT = "PBCoreDescriptionDocument";
+    private static final String ASSET_TYPE = "pbcoreAssetType";
+    private static final String TITLE_GROUP = "pbcoreTitle";
+    private static final String TITLE = "title";
+    private static final String TITLE_TYPE = "titleType";
+    private static final String DESCRIPTION_GROUP = "pbcoreDescription";
+    private static final String DESCRIPTION = "description";
+    private static final String PUBLISHER_GROUP = "pbcorePublisher";
+    private static final String PUBLISHER = "publisher";
+    private static final String PUBLISHER_ROLE = "publisherRole";
+    private static final String INSTANTIATION = "pbcoreInstantiation";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final String contents;
+
+    // Values found when reading the contents, updated as fixes are recorded.
+    private String assetType;
+    private int alternativeTitleGroup = -1;
+    private String alternativeTitle;
+    private String description;
+    private String publisher;
+    private boolean hasDescription;
+    private boolean hasInstantiation;
+
+    // Fixes applied when the metadata is generated.
+    private boolean blankAlternativeTitle;
+    private String newDescription;
+    private boolean insertPublishers;
+
+    public StaxCommercialMetadata(String uuid, String contents) {
+        super(uuid);
+        this.contents = contents;
+        scan();
+    }
+
+    /**
+     * Reads the values the fixes depend on, matching the XPath expressions of {@link CommercialMetadata}: the first
+     * asset type, the first title of a title group with an alternative title type, the first description and the
+     * first publisher of the first publisher group.
+     */
+    private void scan() {
+        try {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(contents));
+            try {
+                int depth = 0;
+                int titleGroup = -1;
+                int publisherGroups = 0;
+                String groupName = null;
+                String groupTitle = null;
+                boolean groupIsAlternative = false;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        String name = reader.getLocalName();
+                        if (depth == 1) {
+                            if (!isPbcore(reader.getNamespaceURI(), DOCUMENT)) {
+                                throw new IllegalArgumentException("Metadata for " + getUuid()
+                                        + " is not a PBCore description document");
+                            }
+                        } else if (depth == 2) {
+                            groupName = isPbcore(reader.getNamespaceURI(), name) ? name : null;
+                            if (TITLE_GROUP.equals(groupName)) {
+                                titleGroup++;
+                                groupTitle = null;
+                                groupIsAlternative = false;
+                            } else if (PUBLISHER_GROUP.equals(groupName)) {
+                                publisherGroups++;
+                            } else if (INSTANTIATION.equals(groupName)) {
+                                hasInstantiation = true;
+                            } else if (ASSET_TYPE.equals(groupName) && assetType == null) {
+                                assetType = reader.getElementText();
+                                depth--;
+                            }
+                        } else if (depth == 3 && groupName != null && isPbcore(reader.getNamespaceURI(), name)) {
+                            if (TITLE_GROUP.equals(groupName) && TITLE.equals(name) && groupTitle == null) {
+                                groupTitle = reader.getElementText();
+                                depth--;
+                            } else if (TITLE_GROUP.equals(groupName) && TITLE_TYPE.equals(name)) {
+                                groupIsAlternative |= "alternative".equals(reader.getElementText());
+                                depth--;
+                            } else if (DESCRIPTION_GROUP.equals(groupName) && DESCRIPTION.equals(name)
+                                    && !hasDescription) {
+                                hasDescription = true;
+                                description = reader.getElementText();
+                                depth--;
+                            } else if (PUBLISHER_GROUP.equals(groupName) && PUBLISHER.equals(name)
+                                    && publisherGroups == 1 && publisher == null) {
+                                publisher = reader.getElementText();
+                                depth--;
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if (depth == 2 && TITLE_GROUP.equals(groupName) && groupIsAlternative
+                                && groupTitle != null && alternativeTitleGroup < 0) {
+                            alternativeTitleGroup = titleGroup;
+                            alternativeTitle = groupTitle;
+                        }
+                        depth--;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Unable to read metadata for " + getUuid(), e);
+        }
+    }
+
+    private static boolean isPbcore(String namespace, String name) {
+        return NAMESPACE.equals(namespace) && name != null;
+    }
+
+    @Override
+    public String getAssetType() {
+        return assetType;
+    }
+
+    @Override
+    public boolean moveAlternativeTitle() {
+        if (alternativeTitle == null || alternativeTitle.equals("")) {
+            log.debug("Alternative title for {} is empty. Nothing is moved.", getUuid());
+            return false;
+        }
+        if (!hasDescription) {
+            log.warn("Metadata for {} has no description. The alternative title is not moved.", getUuid());
+            return false;
+        }
+        metadataChanged();
+        blankAlternativeTitle = true;
+        newDescription = alternativeTitle;
+        description = alternativeTitle;
+        alternativeTitle = "";
+        return true;
+    }
+
+    @Override
+    public String getAlternativeTitle() {
+        return alternativeTitle;
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public boolean hasAlternativeTitle() {
+        return alternativeTitleGroup >= 0;
+    }
+
+    @Override
+    public boolean hasInstantiation() {
+        return hasInstantiation;
+    }
+
+    @Override
+    public boolean insertTv2Info() {
+        if ("tv2d".equals(publisher)) {
+            log.debug("Publisher node already exists for {}. " +
+                    "Assumes that all TV2 info has already been added.", getUuid());
+            return false;
+        }
+        metadataChanged();
+        insertPublishers = true;
+        publisher = "tv2d";
+        return true;
+    }
+
+    /**
+     * Generates the metadata by copying the contents, applying the recorded fixes as the contents are copied.
+     */
+    @Override
+    protected byte[] serialise() {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(contents.length() + 256);
+        try {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(new StringReader(contents));
+            XMLEventWriter writer = new EmptyElementWriter(OUTPUT_FACTORY.createXMLStreamWriter(result, "UTF-8"));
+            try {
+                rewrite(reader, writer);
+                writer.flush();
+            } finally {
+                reader.close();
+                writer.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new RuntimeException("Unexpected error when generating metadata XML", e);
+        }
+        return result.toByteArray();
+    }
+
+    private void rewrite(XMLEventReader reader, XMLEventWriter writer) throws XMLStreamException {
+        int depth = 0;
+        int titleGroup = -1;
+        String groupName = null;
+        boolean titleBlanked = false;
+        boolean descriptionSet = false;
+        boolean publishersInserted = !insertPublishers;
+        boolean rootHasDefaultPbcoreNamespace = false;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartDocument() || event.isEndDocument()) {
+                continue;
+            }
+            if (event.isStartElement()) {
+                StartElement element = event.asStartElement();
+                QName name = element.getName();
+                depth++;
+                if (depth == 1) {
+                    rootHasDefaultPbcoreNamespace = name.getPrefix().isEmpty();
+                } else if (depth == 2) {
+                    groupName = NAMESPACE.equals(name.getNamespaceURI()) ? name.getLocalPart() : null;
+                    if (TITLE_GROUP.equals(groupName)) {
+                        titleGroup++;
+                    }
+                    if (INSTANTIATION.equals(groupName) && !publishersInserted) {
+                        writePublishers(writer, rootHasDefaultPbcoreNamespace);
+                        publishersInserted = true;
+                    }
+                } else if (depth == 3 && groupName != null && NAMESPACE.equals(name.getNamespaceURI())) {
+                    if (blankAlternativeTitle && !titleBlanked && titleGroup == alternativeTitleGroup
+                            && TITLE.equals(name.getLocalPart())) {
+                        replaceContents(reader, writer, element, "");
+                        titleBlanked = true;
+                        depth--;
+                        continue;
+                    }
+                    if (newDescription != null && !descriptionSet && DESCRIPTION_GROUP.equals(groupName)
+                            && DESCRIPTION.equals(name.getLocalPart())) {
+                        replaceContents(reader, writer, element, newDescription);
+                        descriptionSet = true;
+                        depth--;
+                        continue;
+                    }
+                }
+            } else if (event.isEndElement()) {
+                if (depth == 1 && !publishersInserted) {
+                    writePublishers(writer, rootHasDefaultPbcoreNamespace);
+                    publishersInserted = true;
+                }
+                depth--;
+            }
+            writer.add(event);
+        }
+    }
+
+    /**
+     * Writes the element with the given text instead of its original contents, skipping the original contents.
+     */
+    private void replaceContents(XMLEventReader reader, XMLEventWriter writer, StartElement element, String text)
+            throws XMLStreamException {
+        writer.add(element);
+        if (!text.isEmpty()) {
+            writer.add(EVENT_FACTORY.createCharacters(text));
+        }
+        int depth = 1;
+        while (depth > 0) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                depth--;
+                if (depth == 0) {
+                    writer.add(event);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the two TV2 publisher elements. As with {@link CommercialMetadata#insertTv2Info()}, the elements are in
+     * the default namespace, which is declared on them if the document uses a prefix for the PBCore namespace.
+     */
+    private void writePublishers(XMLEventWriter writer, boolean defaultNamespaceInScope) throws XMLStreamException {
+        writePublisher(writer, "tv2d", "channel_name", defaultNamespaceInScope);
+        writePublisher(writer, "TV 2", "kanalnavn", defaultNamespaceInScope);
+    }
+
+    private void writePublisher(XMLEventWriter writer, String publisherText, String publisherRoleText,
+                                boolean defaultNamespaceInScope) throws XMLStreamException {
+        writer.add(EVENT_FACTORY.createStartElement("", NAMESPACE, PUBLISHER_GROUP, null,
+                defaultNamespaceInScope ? null
+                        : Collections.singleton(EVENT_FACTORY.createNamespace(NAMESPACE)).iterator()));
+        writeTextElement(writer, PUBLISHER, publisherText);
+        writeTextElement(writer, PUBLISHER_ROLE, publisherRoleText);
+        writer.add(EVENT_FACTORY.createEndElement("", NAMESPACE, PUBLISHER_GROUP));
+    }
+
+    private void writeTextElement(XMLEventWriter writer, String name, String text) throws XMLStreamException {
+        writer.add(EVENT_FACTORY.createStartElement("", NAMESPACE, name));
+        writer.add(EVENT_FACTORY.createCharacters(text));
+        writer.add(EVENT_FACTORY.createEndElement("", NAMESPACE, name));
+    }
+
+    /**
+     * Writes events to a stream writer, writing elements without contents as empty elements, as the DOM serialiser
+     * does. An event writer writes them as a start and an end tag. The start of an element is held back until the
+     * next event shows whether the element has contents.
+     */
+    private static class EmptyElementWriter implements XMLEventWriter {
+        private final XMLStreamWriter writer;
+        private StartElement pendingStart;
+
+        private EmptyElementWriter(XMLStreamWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void add(XMLEvent event) throws XMLStreamException {
+            if (pendingStart != null) {
+                if (event.isEndElement()) {
+                    writeStart(pendingStart, true);
+                    pendingStart = null;
+                    return;
+                }
+                writeStart(pendingStart, false);
+                pendingStart = null;
+            }
+            switch (event.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    pendingStart = event.asStartElement();
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(event.asCharacters().getData());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(event.asCharacters().getData());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(((Comment) event).getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    ProcessingInstruction instruction = (ProcessingInstruction) event;
+                    writer.writeProcessingInstruction(instruction.getTarget(), instruction.getData());
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    writer.writeEntityRef(((EntityReference) event).getName());
+                    break;
+                case XMLStreamConstants.DTD:
+                    writer.writeDTD(((DTD) event).getDocumentTypeDeclaration());
+                    break;
+                default:
+                    // The document start and end are not written, and other events do not occur in contents.
+                    break;
+            }
+        }
+
+        private void writeStart(StartElement element, boolean empty) throws XMLStreamException {
+            QName name = element.getName();
+            if (empty) {
+                writer.writeEmptyElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+            } else {
+                writer.writeStartElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+            }
+            for (Iterator<?> namespaces = element.getNamespaces(); namespaces.hasNext(); ) {
+                Namespace namespace = (Namespace) namespaces.next();
+                if (namespace.isDefaultNamespaceDeclaration()) {
+                    writer.writeDefaultNamespace(namespace.getNamespaceURI());
+                } else {
+                    writer.writeNamespace(namespace.getPrefix(), namespace.getNamespaceURI());
+                }
+            }
+            for (Iterator<?> attributes = element.getAttributes(); attributes.hasNext(); ) {
+                Attribute attribute = (Attribute) attributes.next();
+                QName attributeName = attribute.getName();
+                if (attributeName.getPrefix().isEmpty()) {
+                    writer.writeAttribute(attributeName.getLocalPart(), attribute.getValue());
+                } else {
+                    writer.writeAttribute(attributeName.getPrefix(), attributeName.getNamespaceURI(),
+                            attributeName.getLocalPart(), attribute.getValue());
+                }
+            }
+        }
+
+        @Override
+        public void add(XMLEventReader reader) throws XMLStreamException {
+            while (reader.hasNext()) {
+                add(reader.nextEvent());
+            }
+        }
+
+        @Override
+        public void flush() throws XMLStreamException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            writer.close();
+        }
+
+        @Override
+        public String getPrefix(String uri) throws XMLStreamException {
+            return writer.getPrefix(uri);
+        }
+
+        @Override
+        public void setPrefix(String prefix, String uri) throws XMLStreamException {
+            writer.setPrefix(prefix, uri);
+        }
+
+        @Override
+        public void setDefaultNamespace(String uri) throws XMLStreamException {
+            writer.setDefaultNamespace(uri);
+        }
+
+        @Override
+        public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+            writer.setNamespaceContext(context);
+        }
+
+        @Override
+        public NamespaceContext getNamespaceContext() {
+            return writer.getNamespaceContext();
+        }
+    }
+}
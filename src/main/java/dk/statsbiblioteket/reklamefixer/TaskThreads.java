@@ -0,0 +1,51 @@
+package dk.statsbiblioteket.reklamefixer;
+
+import dk.statsbiblioteket.reklamefixer.configuration.InitializationFailedException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads running the tasks that process one object each, from retrieval to update.
+ */
+public enum TaskThreads {
+    /**
+     * A pool of platform threads, one for each object processed concurrently.
+     */
+    PLATFORM,
+    /**
+     * A virtual thread for each object. Virtual threads need Java 21, so they are only available in builds with the
+     * loom profile.
+     */
+    VIRTUAL;
+
+    private static final String THREAD_NAME = "doms-object-";
+    private static final String VIRTUAL_THREAD_EXECUTORS = "dk.statsbiblioteket.reklamefixer.VirtualThreadExecutors";
+
+    /**
+     * @param maxConcurrentObjects the maximum number of objects processed concurrently.
+     * @throws InitializationFailedException if virtual threads are not available.
+     */
+    ExecutorService newExecutor(int maxConcurrentObjects) {
+        if (this == PLATFORM) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newFixedThreadPool(maxConcurrentObjects, runnable -> {
+                Thread thread = new Thread(runnable, THREAD_NAME + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        try {
+            // Compiled from src/loom/java, which is only built with the loom profile.
+            return (ExecutorService) Class.forName(VIRTUAL_THREAD_EXECUTORS)
+                    .getDeclaredMethod("create", String.class).invoke(null, THREAD_NAME);
+        } catch (ClassNotFoundException | UnsupportedClassVersionError e) {
+            throw new InitializationFailedException("Virtual threads need Java 21 and a build with the loom profile "
+                    + "('mvn -Ploom package').", e);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Unable to create virtual thread executor", e);
+        }
+    }
+}
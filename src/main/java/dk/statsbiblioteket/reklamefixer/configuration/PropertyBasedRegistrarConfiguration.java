@@ -1,5 +1,11 @@
 package dk.statsbiblioteket.reklamefixer.configuration;
 
+import dk.statsbiblioteket.reklamefixer.MetadataEngine;
+import dk.statsbiblioteket.reklamefixer.TaskThreads;
+import dk.statsbiblioteket.reklamefixer.rules.FixAction;
+import dk.statsbiblioteket.reklamefixer.rules.FixCondition;
+import dk.statsbiblioteket.reklamefixer.rules.FixRule;
+import dk.statsbiblioteket.reklamefixer.rules.FixRules;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,6 +16,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -21,6 +32,58 @@ public class PropertyBasedRegistrarConfiguration {
     private static final String PASSWORD_KEY = "doms-reklamefixer.password";
     private static final String DOMS_WS_API_ENDPOINT_KEY = "doms-reklamefixer.domsWSAPIEndpoint";
     private static final String DOMS_WS_API_ENDPOINT_TIMEOUT_KEY = "doms-reklamefixer.domsWSAPIEndpointTimeoutInMillis";
+    private static final String PIPELINE_WINDOW_SIZE_KEY = "doms-reklamefixer.pipelineWindowSize";
+
+    private static final String FETCH_THREADS_KEY = "doms-reklamefixer.fetchThreads";
+    private static final String MAX_IN_FLIGHT_FETCHES_KEY = "doms-reklamefixer.maxInFlightFetches";
+    private static final String PORT_POOL_SIZE_KEY = "doms-reklamefixer.portPoolSize";
+    private static final String UPDATE_BATCH_SIZE_KEY = "doms-reklamefixer.updateBatchSize";
+    private static final String STATE_COLLECTION_PID_KEY = "doms-reklamefixer.stateCollectionPid";
+    private static final String STATE_VIEW_ANGLE_KEY = "doms-reklamefixer.stateViewAngle";
+    private static final String JOURNAL_FILE_KEY = "doms-reklamefixer.journalFile";
+    private static final String JOURNAL_SYNC_EVERY_KEY = "doms-reklamefixer.journalSyncEvery";
+    private static final String JOURNAL_SYNC_INTERVAL_KEY = "doms-reklamefixer.journalSyncIntervalInMillis";
+    private static final String DIGEST_FILE_KEY = "doms-reklamefixer.digestFile";
+    private static final String METADATA_ENGINE_KEY = "doms-reklamefixer.metadataEngine";
+    private static final String PROGRESS_INTERVAL_KEY = "doms-reklamefixer.progressIntervalInSeconds";
+    private static final String METRICS_FILE_KEY = "doms-reklamefixer.metricsFile";
+    private static final String READ_MAX_CONCURRENCY_KEY = "doms-reklamefixer.readMaxConcurrency";
+    private static final String READ_MAX_REQUESTS_PER_SECOND_KEY = "doms-reklamefixer.readMaxRequestsPerSecond";
+    private static final String WRITE_MAX_CONCURRENCY_KEY = "doms-reklamefixer.writeMaxConcurrency";
+    private static final String WRITE_MAX_REQUESTS_PER_SECOND_KEY = "doms-reklamefixer.writeMaxRequestsPerSecond";
+    private static final String THROTTLE_TARGET_LATENCY_KEY = "doms-reklamefixer.throttleTargetLatencyInMillis";
+    private static final String RETRY_MAX_ATTEMPTS_KEY = "doms-reklamefixer.retryMaxAttempts";
+    private static final String RETRY_INITIAL_BACKOFF_KEY = "doms-reklamefixer.retryInitialBackoffInMillis";
+    private static final String RETRY_MAX_BACKOFF_KEY = "doms-reklamefixer.retryMaxBackoffInMillis";
+    private static final String DEAD_LETTER_FILE_KEY = "doms-reklamefixer.deadLetterFile";
+    private static final String HIGH_WATER_MARK_FILE_KEY = "doms-reklamefixer.highWaterMarkFile";
+    private static final String DIFF_FILE_KEY = "doms-reklamefixer.diffFile";
+    private static final String DATASTREAM_CACHE_DIRECTORY_KEY = "doms-reklamefixer.datastreamCacheDirectory";
+    private static final String STREAM_DATASTREAMS_KEY = "doms-reklamefixer.streamDatastreams";
+    private static final String STREAM_DATASTREAM_WRITES_KEY = "doms-reklamefixer.streamDatastreamWrites";
+    private static final String VIEW_BUNDLE_ANGLE_KEY = "doms-reklamefixer.viewBundleAngle";
+    private static final String OBJECT_TASK_THREADS_KEY = "doms-reklamefixer.objectTaskThreads";
+    private static final String MAX_CONCURRENT_OBJECTS_KEY = "doms-reklamefixer.maxConcurrentObjects";
+    private static final String FIX_RULES_KEY = "doms-reklamefixer.fixRules";
+    private static final String FIX_RULE_KEY_PREFIX = "doms-reklamefixer.fixRule.";
+    private static final String FIX_RULE_ASSET_TYPE = ".assetType";
+    private static final String FIX_RULE_CONDITIONS = ".conditions";
+    private static final String FIX_RULE_ACTIONS = ".actions";
+    private static final String NEGATION = "!";
+
+    private static final int DEFAULT_PIPELINE_WINDOW_SIZE = 500;
+    private static final int DEFAULT_FETCH_THREADS = 1;
+    private static final int DEFAULT_PORT_POOL_SIZE = 4;
+    private static final int DEFAULT_UPDATE_BATCH_SIZE = 1;
+    private static final int DEFAULT_JOURNAL_SYNC_EVERY = 1000;
+    private static final int DEFAULT_JOURNAL_SYNC_INTERVAL = 1000;
+    private static final int DEFAULT_PROGRESS_INTERVAL = 60;
+    private static final int NO_RATE_LIMIT = 0;
+    private static final int DEFAULT_THROTTLE_TARGET_LATENCY = 2000;
+    private static final int DEFAULT_RETRY_MAX_ATTEMPTS = 3;
+    private static final int DEFAULT_RETRY_INITIAL_BACKOFF = 1000;
+    private static final int DEFAULT_RETRY_MAX_BACKOFF = 30000;
+    private static final int DEFAULT_MAX_CONCURRENT_OBJECTS = 64;
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -72,4 +135,326 @@ public class PropertyBasedRegistrarConfiguration {
             throw new InitializationFailedException("Invalid property for '" + DOMS_WS_API_ENDPOINT_TIMEOUT_KEY + "'", e);
         }
     }
+
+    /**
+     * @return the maximum number of objects retrieved, fixed and updated together before the next objects are
+     * retrieved.
+     */
+    public int getPipelineWindowSize() {
+        return getPositiveIntProperty(PIPELINE_WINDOW_SIZE_KEY, DEFAULT_PIPELINE_WINDOW_SIZE);
+    }
+
+    /**
+     * @return the number of objects retrieved from DOMS concurrently.
+     */
+    public int getFetchThreads() {
+        return getPositiveIntProperty(FETCH_THREADS_KEY, DEFAULT_FETCH_THREADS);
+    }
+
+    /**
+     * @return the maximum number of retrievals submitted but not yet completed. Defaults to twice the number of
+     * fetch threads.
+     */
+    public int getMaxInFlightFetches() {
+        return getPositiveIntProperty(MAX_IN_FLIGHT_FETCHES_KEY, 2 * getFetchThreads());
+    }
+
+    /**
+     * @return the maximum number of web service ports used concurrently towards DOMS.
+     */
+    public int getPortPoolSize() {
+        return getPositiveIntProperty(PORT_POOL_SIZE_KEY, DEFAULT_PORT_POOL_SIZE);
+    }
+
+    /**
+     * @return the number of objects marked in progress and published together in one call.
+     */
+    public int getUpdateBatchSize() {
+        return getPositiveIntProperty(UPDATE_BATCH_SIZE_KEY, DEFAULT_UPDATE_BATCH_SIZE);
+    }
+
+    /**
+     * @return the collection to preload object states from, or null if states are looked up one object at a time.
+     */
+    public String getStateCollectionPid() {
+        return getOptionalProperty(STATE_COLLECTION_PID_KEY);
+    }
+
+    /**
+     * @return the view angle used when preloading object states.
+     */
+    public String getStateViewAngle() {
+        return getOptionalProperty(STATE_VIEW_ANGLE_KEY);
+    }
+
+    /**
+     * @return the journal recording the outcome of each object, or null if no journal is written.
+     */
+    public File getJournalFile() {
+        String journalFile = getOptionalProperty(JOURNAL_FILE_KEY);
+        return journalFile == null ? null : new File(journalFile);
+    }
+
+    /**
+     * @return the number of journal entries written between syncs to disk.
+     */
+    public int getJournalSyncEvery() {
+        return getPositiveIntProperty(JOURNAL_SYNC_EVERY_KEY, DEFAULT_JOURNAL_SYNC_EVERY);
+    }
+
+    /**
+     * @return the maximum time in milliseconds journal entries are kept before they are synced to disk.
+     */
+    public int getJournalSyncIntervalMillis() {
+        return getPositiveIntProperty(JOURNAL_SYNC_INTERVAL_KEY, DEFAULT_JOURNAL_SYNC_INTERVAL);
+    }
+
+    /**
+     * @return the file of digests of contents known to be fixed, or null if contents are always parsed.
+     */
+    public File getDigestFile() {
+        String digestFile = getOptionalProperty(DIGEST_FILE_KEY);
+        return digestFile == null ? null : new File(digestFile);
+    }
+
+    /**
+     * @return the engine used to read and fix metadata, either 'dom' or 'stax'. Defaults to 'dom'.
+     */
+    public MetadataEngine getMetadataEngine() {
+        String engine = getOptionalProperty(METADATA_ENGINE_KEY);
+        if (engine == null) {
+            return MetadataEngine.DOM;
+        }
+        try {
+            return MetadataEngine.valueOf(engine.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InitializationFailedException("Invalid property for '" + METADATA_ENGINE_KEY + "'", e);
+        }
+    }
+
+    /**
+     * @return the rules fixing the metadata, in the order they are applied. If no rules are configured, the fixes of
+     * cinema and TV 2 commercials are applied.
+     */
+    public FixRules getFixRules() {
+        String ruleNames = getOptionalProperty(FIX_RULES_KEY);
+        if (ruleNames == null) {
+            return FixRules.DEFAULT;
+        }
+        List<FixRule> rules = new ArrayList<>();
+        for (String name : splitList(ruleNames)) {
+            String prefix = FIX_RULE_KEY_PREFIX + name;
+            try {
+                Map<FixCondition, Boolean> conditions = new LinkedHashMap<>();
+                String conditionNames = getOptionalProperty(prefix + FIX_RULE_CONDITIONS);
+                if (conditionNames != null) {
+                    for (String condition : splitList(conditionNames)) {
+                        boolean negated = condition.startsWith(NEGATION);
+                        conditions.put(FixCondition.forConfigName(
+                                negated ? condition.substring(NEGATION.length()).trim() : condition), !negated);
+                    }
+                }
+                List<FixAction> actions = new ArrayList<>();
+                String actionNames = getOptionalProperty(prefix + FIX_RULE_ACTIONS);
+                if (actionNames != null) {
+                    for (String action : splitList(actionNames)) {
+                        actions.add(FixAction.forConfigName(action));
+                    }
+                }
+                rules.add(new FixRule(name, getOptionalProperty(prefix + FIX_RULE_ASSET_TYPE), conditions, actions));
+            } catch (IllegalArgumentException e) {
+                throw new InitializationFailedException("Invalid properties for fix rule '" + name + "'", e);
+            }
+        }
+        return new FixRules(rules);
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> result = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                result.add(item.trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of seconds between progress reports.
+     */
+    public int getProgressIntervalSeconds() {
+        return getPositiveIntProperty(PROGRESS_INTERVAL_KEY, DEFAULT_PROGRESS_INTERVAL);
+    }
+
+    /**
+     * @return the file the metrics of a run are written to when the run ends, or null if they are not written.
+     */
+    public File getMetricsFile() {
+        String metricsFile = getOptionalProperty(METRICS_FILE_KEY);
+        return metricsFile == null ? null : new File(metricsFile);
+    }
+
+    /**
+     * @return the maximum number of reads from DOMS in flight. Defaults to the port pool size.
+     */
+    public int getReadMaxConcurrency() {
+        return getPositiveIntProperty(READ_MAX_CONCURRENCY_KEY, getPortPoolSize());
+    }
+
+    /**
+     * @return the maximum number of reads from DOMS started per second, or 0 if reads are not rate limited.
+     */
+    public int getReadMaxRequestsPerSecond() {
+        return getPositiveIntProperty(READ_MAX_REQUESTS_PER_SECOND_KEY, NO_RATE_LIMIT);
+    }
+
+    /**
+     * @return the maximum number of writes to DOMS in flight. Defaults to the port pool size.
+     */
+    public int getWriteMaxConcurrency() {
+        return getPositiveIntProperty(WRITE_MAX_CONCURRENCY_KEY, getPortPoolSize());
+    }
+
+    /**
+     * @return the maximum number of writes to DOMS started per second, or 0 if writes are not rate limited.
+     */
+    public int getWriteMaxRequestsPerSecond() {
+        return getPositiveIntProperty(WRITE_MAX_REQUESTS_PER_SECOND_KEY, NO_RATE_LIMIT);
+    }
+
+    /**
+     * @return the latency in milliseconds above which a DOMS call makes the throttle back off.
+     */
+    public int getThrottleTargetLatencyMillis() {
+        return getPositiveIntProperty(THROTTLE_TARGET_LATENCY_KEY, DEFAULT_THROTTLE_TARGET_LATENCY);
+    }
+
+    /**
+     * @return the maximum number of calls made to DOMS for one request, including the first. 1 disables retries.
+     */
+    public int getRetryMaxAttempts() {
+        return getPositiveIntProperty(RETRY_MAX_ATTEMPTS_KEY, DEFAULT_RETRY_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @return the maximum time in milliseconds to wait before the first retry. Doubled for each following retry.
+     */
+    public int getRetryInitialBackoffMillis() {
+        return getPositiveIntProperty(RETRY_INITIAL_BACKOFF_KEY, DEFAULT_RETRY_INITIAL_BACKOFF);
+    }
+
+    /**
+     * @return the maximum time in milliseconds to wait before any retry.
+     */
+    public int getRetryMaxBackoffMillis() {
+        int maxBackoff = getPositiveIntProperty(RETRY_MAX_BACKOFF_KEY, DEFAULT_RETRY_MAX_BACKOFF);
+        if (maxBackoff < getRetryInitialBackoffMillis()) {
+            throw new InitializationFailedException("Invalid property for '" + RETRY_MAX_BACKOFF_KEY
+                    + "'. Must be at least '" + RETRY_INITIAL_BACKOFF_KEY + "'.");
+        }
+        return maxBackoff;
+    }
+
+    /**
+     * @return the file objects that failed are written to, or null if they are not written to a file.
+     */
+    public File getDeadLetterFile() {
+        String deadLetterFile = getOptionalProperty(DEAD_LETTER_FILE_KEY);
+        return deadLetterFile == null ? null : new File(deadLetterFile);
+    }
+
+    /**
+     * @return the file keeping the modification time up to which incremental runs have processed objects, or null
+     * if incremental runs are not configured.
+     */
+    public File getHighWaterMarkFile() {
+        String highWaterMarkFile = getOptionalProperty(HIGH_WATER_MARK_FILE_KEY);
+        return highWaterMarkFile == null ? null : new File(highWaterMarkFile);
+    }
+
+    /**
+     * @return the file the changes of a dry run are written to, or null if they are not written to a file.
+     */
+    public File getDiffFile() {
+        String diffFile = getOptionalProperty(DIFF_FILE_KEY);
+        return diffFile == null ? null : new File(diffFile);
+    }
+
+    /**
+     * @return the directory retrieved datastreams are cached in between runs, or null if they are not cached.
+     */
+    public File getDatastreamCacheDirectory() {
+        String directory = getOptionalProperty(DATASTREAM_CACHE_DIRECTORY_KEY);
+        return directory == null ? null : new File(directory);
+    }
+
+    /**
+     * @return whether retrieved datastreams are parsed as they are read from the response. Defaults to false.
+     */
+    public boolean isStreamDatastreams() {
+        return Boolean.parseBoolean(getOptionalProperty(STREAM_DATASTREAMS_KEY));
+    }
+
+    /**
+     * @return whether fixed datastreams are written into the request as serialised, instead of being stored through
+     * JAX-WS. Defaults to false.
+     */
+    public boolean isStreamDatastreamWrites() {
+        return Boolean.parseBoolean(getOptionalProperty(STREAM_DATASTREAM_WRITES_KEY));
+    }
+
+    /**
+     * @return the view angle of the view bundles datastreams are retrieved in, or null if they are retrieved one
+     * object at a time.
+     */
+    public String getViewBundleAngle() {
+        return getOptionalProperty(VIEW_BUNDLE_ANGLE_KEY);
+    }
+
+    /**
+     * @return the threads running a task for each object, from retrieval to update, or null if objects are processed
+     * in windows.
+     */
+    public TaskThreads getObjectTaskThreads() {
+        String threads = getOptionalProperty(OBJECT_TASK_THREADS_KEY);
+        if (threads == null) {
+            return null;
+        }
+        try {
+            return TaskThreads.valueOf(threads.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InitializationFailedException("Invalid property for '" + OBJECT_TASK_THREADS_KEY + "'", e);
+        }
+    }
+
+    /**
+     * @return the maximum number of objects processed concurrently by object tasks.
+     */
+    public int getMaxConcurrentObjects() {
+        return getPositiveIntProperty(MAX_CONCURRENT_OBJECTS_KEY, DEFAULT_MAX_CONCURRENT_OBJECTS);
+    }
+
+    private String getOptionalProperty(String key) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return value.trim();
+    }
+
+    private int getPositiveIntProperty(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(value.trim());
+            if (result < 1) {
+                throw new InitializationFailedException("Invalid property for '" + key + "'. Must be positive.");
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new InitializationFailedException("Invalid property for '" + key + "'", e);
+        }
+    }
 }
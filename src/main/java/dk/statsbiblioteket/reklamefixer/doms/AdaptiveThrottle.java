@@ -0,0 +1,130 @@
+package dk.statsbiblioteket.reklamefixer.doms;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the concurrency and rate of calls to DOMS, adapting the limits to how DOMS responds.
+ *
+ * The concurrency limit starts at the configured maximum. It is increased additively by one for each limit's worth
+ * of calls that are answered within the target latency, and halved when a call is slow or DOMS reports an overload,
+ * at most once per target latency so a burst of failures only counts once. The rate limit, if any, follows the
+ * concurrency limit, so the throttle allows maxRequestsPerSecond when the concurrency limit is at its maximum.
+ *
+ * Calls wait for the throttle on a lock rather than a monitor, so waiting virtual threads release their carrier
+ * threads.
+ */
+public class AdaptiveThrottle {
+
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final String name;
+    private final int maxConcurrency;
+    private final int maxRequestsPerSecond;
+    private final long targetLatencyNanos;
+    private final Lock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private long nextPermitNanos = System.nanoTime();
+    private long lastDecreaseNanos = System.nanoTime() - Long.MAX_VALUE / 2;
+
+    /**
+     * @param maxConcurrency       the maximum number of calls in flight.
+     * @param maxRequestsPerSecond the maximum number of calls started per second, or 0 for no rate limit.
+     * @param targetLatencyMillis  calls taking longer than this are taken as a sign of overload.
+     */
+    public AdaptiveThrottle(String name, int maxConcurrency, int maxRequestsPerSecond, int targetLatencyMillis) {
+        if (maxConcurrency < 1 || maxRequestsPerSecond < 0 || targetLatencyMillis < 1) {
+            throw new IllegalArgumentException("Invalid throttle limits for " + name);
+        }
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.limit = maxConcurrency;
+    }
+
+    /**
+     * Waits until a call is allowed by the concurrency and rate limits. Each acquire must be followed by a
+     * {@link #release(long, boolean)}.
+     */
+    public void acquire() throws InterruptedException {
+        long permitNanos;
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                released.await();
+            }
+            inFlight++;
+            if (maxRequestsPerSecond == 0) {
+                return;
+            }
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / (maxRequestsPerSecond * limit / maxConcurrency));
+            permitNanos = Math.max(System.nanoTime(), nextPermitNanos);
+            nextPermitNanos = permitNanos + interval;
+        } finally {
+            lock.unlock();
+        }
+        long waitNanos = permitNanos - System.nanoTime();
+        try {
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        } catch (InterruptedException e) {
+            lock.lock();
+            try {
+                inFlight--;
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a call and adapts the limits to its outcome.
+     * @param latencyNanos the time the call took.
+     * @param overloaded   true if the call failed in a way that indicates DOMS is overloaded.
+     */
+    public void release(long latencyNanos, boolean overloaded) {
+        lock.lock();
+        try {
+            inFlight--;
+            long now = System.nanoTime();
+            if (overloaded || latencyNanos > targetLatencyNanos) {
+                if (now - lastDecreaseNanos > targetLatencyNanos) {
+                    limit = Math.max(1, limit * DECREASE_FACTOR);
+                    lastDecreaseNanos = now;
+                    log.debug("Reduced {} limit to {} calls in flight after {} call.",
+                            name, (int) limit, overloaded ? "failed" : "slow");
+                }
+            } else if (limit < maxConcurrency) {
+                limit = Math.min(maxConcurrency, limit + 1 / limit);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current number of calls allowed in flight.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -2,19 +2,40 @@ package dk.statsbiblioteket.reklamefixer.doms;
 
 import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
 import dk.statsbiblioteket.reklamefixer.configuration.PropertyBasedRegistrarConfiguration;
+import dk.statsbiblioteket.reklamefixer.metrics.Metrics;
+import dk.statsbiblioteket.reklamefixer.metrics.OperationMetrics;
 import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.CentralWebservice;
 import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.CentralWebserviceService;
 import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidCredentialsException;
 import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidResourceException;
 import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.MethodFailedException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.RecordDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.xml.namespace.QName;
 import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Central web service methods used in this project
+ * Central web service methods used in this project.
+ *
+ * The methods are safe to call from several threads. Each call borrows a port from a pool of at most
+ * portPoolSize ports, so a port and its request context is only used by one thread at a time. Ports are created
+ * and configured once, and are only replaced when a call fails with a {@link WebServiceException}.
+ *
+ * Reads and writes are throttled separately by an {@link AdaptiveThrottle}, which backs off when DOMS answers
+ * slowly or fails, so the fixer does not starve other clients of DOMS. Calls failing in a way that may be
+ * transient are retried as decided by a {@link RetryPolicy}.
  */
 public class DOMSClient {
     private static final QName CENTRAL_WEBSERVICE_SERVICE = new QName(
@@ -26,31 +47,130 @@ public class DOMSClient {
 
     private static final String DC_DATASTREAM_ID = "PBCORE";
 
+    private static final String GET_DATASTREAM_CONTENTS = "doms.getDatastreamContents";
+    private static final String GET_VIEW_BUNDLE = "doms.getViewBundle";
+    private static final String GET_OBJECT_PROFILE = "doms.getObjectProfile";
+    private static final String GET_IDS_MODIFIED = "doms.getIDsModified";
+    private static final String GET_LATEST_MODIFIED = "doms.getLatestModified";
+    private static final String MARK_IN_PROGRESS_OBJECT = "doms.markInProgressObject";
+    private static final String MODIFY_DATASTREAM = "doms.modifyDatastream";
+    private static final String MARK_PUBLISHED_OBJECT = "doms.markPublishedObject";
+    private static final String SERIALISE_METADATA = "metadata.serialise";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Metrics metrics = Metrics.getInstance();
     private final PropertyBasedRegistrarConfiguration configuration;
+    private final int portPoolSize;
+    private final AdaptiveThrottle readThrottle;
+    private final AdaptiveThrottle writeThrottle;
+    private final RetryPolicy retryPolicy;
+    private final StreamingDatastreamClient streamingClient;
+    private final Deque<CentralWebservice> idlePorts = new ArrayDeque<>();
+    // Guards the pool of ports. A lock rather than a monitor, so virtual threads waiting for a port release their
+    // carrier threads.
+    private final Lock portsLock = new ReentrantLock();
+    private final Condition portReturned = portsLock.newCondition();
+    private int createdPorts = 0;
+    // Guards the service and the shared port, which are created with calls to DOMS. A lock rather than a monitor,
+    // so virtual threads waiting for a port to be created release their carrier threads.
+    private final Lock serviceLock = new ReentrantLock();
+    private CentralWebserviceService centralWebserviceService;
     private CentralWebservice centralWebservice;
 
     public DOMSClient(PropertyBasedRegistrarConfiguration configuration) {
         this.configuration = configuration;
+        this.portPoolSize = configuration.getPortPoolSize();
+        this.readThrottle = new AdaptiveThrottle("DOMS read",
+                configuration.getReadMaxConcurrency(), configuration.getReadMaxRequestsPerSecond(),
+                configuration.getThrottleTargetLatencyMillis());
+        this.writeThrottle = new AdaptiveThrottle("DOMS write",
+                configuration.getWriteMaxConcurrency(), configuration.getWriteMaxRequestsPerSecond(),
+                configuration.getThrottleTargetLatencyMillis());
+        this.retryPolicy = new RetryPolicy(configuration.getRetryMaxAttempts(),
+                configuration.getRetryInitialBackoffMillis(), configuration.getRetryMaxBackoffMillis());
+        this.streamingClient = new StreamingDatastreamClient(configuration.getUsername(), configuration.getPassword(),
+                configuration.getDomsWSAPIEndpointTimeout());
     }
 
     public String getDatastreamContents(String objectId) throws MethodFailedException, InvalidResourceException, InvalidCredentialsException {
-        return getCentralWebservice().getDatastreamContents(objectId, DC_DATASTREAM_ID);
+        return call(GET_DATASTREAM_CONTENTS, readThrottle, port -> port.getDatastreamContents(objectId, DC_DATASTREAM_ID));
+    }
+
+    /**
+     * Retrieves the datastream contents of an object and hands them to the parser as they are read from the
+     * response, so they are never held as a String. The call is sent to the endpoint address of a pooled port, and
+     * is throttled and retried like the other calls. Runtime exceptions of the parser are thrown as they are, and
+     * are not retried, nor taken as a sign that DOMS is overloaded.
+     * @see StreamingDatastreamClient
+     */
+    public <T> T readDatastreamContents(String objectId, StreamingDatastreamClient.ContentsParser<T> parser)
+            throws MethodFailedException, InvalidResourceException, InvalidCredentialsException {
+        try {
+            return call(GET_DATASTREAM_CONTENTS, readThrottle,
+                    port -> streamingClient.read(getEndpointAddress(port), objectId, DC_DATASTREAM_ID, parser));
+        } catch (StreamingDatastreamClient.ContentsParseException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return the number of read calls currently allowed in flight by the throttle.
+     */
+    public int getReadLimit() {
+        return readThrottle.getLimit();
+    }
+
+    private static String getEndpointAddress(CentralWebservice port) {
+        return (String) ((BindingProvider) port).getRequestContext().get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY);
     }
 
+    /**
+     * Retrieves the datastream contents of all objects in the view of an object in a single call.
+     * @return the contents of each object in the view bundle of the object that has the datastream, by object id.
+     */
+    public Map<String, String> getDatastreamContentsInViewBundle(String objectId, String viewAngle)
+            throws MethodFailedException, InvalidResourceException, InvalidCredentialsException {
+        String bundle = call(GET_VIEW_BUNDLE, readThrottle,
+                port -> port.getViewBundle(objectId, viewAngle).getContents());
+        return ViewBundles.getDatastreams(bundle, DC_DATASTREAM_ID);
+    }
+
+    /**
+     * @return a port that is not part of the pool, for callers that need to use the web service directly. The port
+     * is shared by all callers of this method and is not guarded against concurrent use.
+     */
     public CentralWebservice getCentralWebservice() {
-        if (centralWebservice == null) {
-            disableEntityExpansionLimit();
-            centralWebservice =
-                    new CentralWebserviceService(configuration.getDomsWSAPIEndpoint(), CENTRAL_WEBSERVICE_SERVICE)
-                            .getCentralWebservicePort();
-            Map<String, Object> context = ((BindingProvider) centralWebservice).getRequestContext();
+        serviceLock.lock();
+        try {
+            if (centralWebservice == null) {
+                centralWebservice = createPort();
+            }
+            return centralWebservice;
+        } finally {
+            serviceLock.unlock();
+        }
+    }
+
+    private CentralWebservice createPort() {
+        serviceLock.lock();
+        try {
+            if (centralWebserviceService == null) {
+                disableEntityExpansionLimit();
+                centralWebserviceService = new CentralWebserviceService(
+                        configuration.getDomsWSAPIEndpoint(), CENTRAL_WEBSERVICE_SERVICE);
+            }
+            CentralWebservice port = centralWebserviceService.getCentralWebservicePort();
+            Map<String, Object> context = ((BindingProvider) port).getRequestContext();
             context.put(BindingProvider.USERNAME_PROPERTY, configuration.getUsername());
             context.put(BindingProvider.PASSWORD_PROPERTY, configuration.getPassword());
             int domsWSAPIEndpointTimeout = configuration.getDomsWSAPIEndpointTimeout();
             context.put(CONNECT_TIMEOUT, domsWSAPIEndpointTimeout);
             context.put(REQUEST_TIMEOUT, domsWSAPIEndpointTimeout);
+            return port;
+        } finally {
+            serviceLock.unlock();
         }
-        return centralWebservice;
     }
 
     private void disableEntityExpansionLimit() {
@@ -59,22 +179,195 @@ public class DOMSClient {
         System.getProperties().setProperty("jdk.xml.entityExpansionLimit", "0");
     }
 
+    /**
+     * Calls the web service, retrying failed calls as allowed by the retry policy.
+     */
+    private <T> T call(String operation, AdaptiveThrottle throttle, PortCall<T> call) throws MethodFailedException,
+            InvalidResourceException, InvalidCredentialsException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return callOnce(operation, throttle, call);
+            } catch (MethodFailedException | InvalidResourceException | InvalidCredentialsException
+                    | WebServiceException e) {
+                if (!retryPolicy.shouldRetry(attempt, e)) {
+                    throw e;
+                }
+                long backoff = retryPolicy.getBackoffMillis(attempt);
+                log.warn("Call of {} failed on attempt {} of {}. Retrying in {} ms.",
+                        operation, attempt, retryPolicy.getMaxAttempts(), backoff, e);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls the web service with a port borrowed from the pool, once the throttle allows it. A port that fails with
+     * a {@link WebServiceException} is considered broken and is discarded instead of being returned to the pool.
+     * The call is timed as the given operation, not counting the time spent waiting for the throttle or a port.
+     */
+    private <T> T callOnce(String operation, AdaptiveThrottle throttle, PortCall<T> call)
+            throws MethodFailedException, InvalidResourceException, InvalidCredentialsException {
+        try {
+            throttle.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebServiceException("Interrupted while waiting for the DOMS throttle", e);
+        }
+        OperationMetrics operationMetrics = metrics.operation(operation);
+        CentralWebservice port = null;
+        long start = 0;
+        boolean healthy = false;
+        boolean success = false;
+        boolean overloaded = true;
+        try {
+            port = borrowPort();
+            start = operationMetrics.start();
+            T result = call.call(port);
+            healthy = true;
+            success = true;
+            overloaded = false;
+            return result;
+        } catch (InvalidResourceException | InvalidCredentialsException
+                | StreamingDatastreamClient.ContentsParseException e) {
+            // DOMS answered, so the port itself is fine, and the failure concerns the request, not the load.
+            healthy = true;
+            overloaded = false;
+            throw e;
+        } catch (MethodFailedException e) {
+            healthy = true;
+            throw e;
+        } finally {
+            long latency = 0;
+            if (port != null) {
+                latency = System.nanoTime() - start;
+                operationMetrics.stop(start, success);
+                returnPort(port, healthy);
+            }
+            throttle.release(latency, overloaded);
+        }
+    }
+
+    private CentralWebservice borrowPort() {
+        portsLock.lock();
+        try {
+            while (idlePorts.isEmpty() && createdPorts >= portPoolSize) {
+                try {
+                    portReturned.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new WebServiceException("Interrupted while waiting for a DOMS port", e);
+                }
+            }
+            if (!idlePorts.isEmpty()) {
+                return idlePorts.pop();
+            }
+            createdPorts++;
+            log.debug("Creating DOMS port {} of at most {}.", createdPorts, portPoolSize);
+        } finally {
+            portsLock.unlock();
+        }
+        try {
+            return createPort();
+        } catch (RuntimeException e) {
+            returnPort(null, false);
+            throw e;
+        }
+    }
+
+    private void returnPort(CentralWebservice port, boolean healthy) {
+        portsLock.lock();
+        try {
+            if (healthy) {
+                idlePorts.push(port);
+            } else {
+                if (port != null) {
+                    log.warn("Discarding DOMS port after failed call. A new port will be created when needed.");
+                }
+                createdPorts--;
+            }
+            portReturned.signal();
+        } finally {
+            portsLock.unlock();
+        }
+    }
+
     public void markInProgressObject(String objectId) throws MethodFailedException,
             InvalidResourceException, InvalidCredentialsException {
-        getCentralWebservice().markInProgressObject(
-                Arrays.asList(objectId), "Preparing to update object for doms-reklame-metadata-fixer");
+        call(MARK_IN_PROGRESS_OBJECT, writeThrottle, port -> {
+            port.markInProgressObject(
+                    Arrays.asList(objectId), "Preparing to update object for doms-reklame-metadata-fixer");
+            return null;
+        });
     }
 
+    /**
+     * Marks several objects in progress in a single call.
+     */
+    public void markInProgressObjects(List<String> objectIds) throws MethodFailedException,
+            InvalidResourceException, InvalidCredentialsException {
+        call(MARK_IN_PROGRESS_OBJECT, writeThrottle, port -> {
+            port.markInProgressObject(
+                    objectIds, "Preparing to update object for doms-reklame-metadata-fixer");
+            return null;
+        });
+    }
+
+    /**
+     * Stores the metadata in the datastream of the object. The metadata is serialised once, also when the call is
+     * retried. When datastream writes are streamed, the serialised bytes are written into the request as they are, instead
+     * of being decoded into a String for JAX-WS.
+     */
     public void modifyDatastream(String objectId, CommercialMetadata metadata) throws MethodFailedException,
             InvalidResourceException, InvalidCredentialsException {
-        getCentralWebservice().modifyDatastream(
-                objectId, DC_DATASTREAM_ID, metadata.getMetadata(), "Updating object for doms-reklame-metadata-fixer");
+        OperationMetrics serialise = metrics.operation(SERIALISE_METADATA);
+        long start = serialise.start();
+        boolean serialised = false;
+        byte[] contents;
+        try {
+            contents = metadata.getMetadataBytes();
+            serialised = true;
+        } finally {
+            serialise.stop(start, serialised);
+        }
+        String comment = "Updating object for doms-reklame-metadata-fixer";
+        if (configuration.isStreamDatastreamWrites()) {
+            call(MODIFY_DATASTREAM, writeThrottle, port -> {
+                streamingClient.modify(getEndpointAddress(port), objectId, DC_DATASTREAM_ID, contents, comment);
+                return null;
+            });
+            return;
+        }
+        String contentsText = new String(contents, StandardCharsets.UTF_8);
+        call(MODIFY_DATASTREAM, writeThrottle, port -> {
+            port.modifyDatastream(objectId, DC_DATASTREAM_ID, contentsText, comment);
+            return null;
+        });
     }
 
     public void markPublishedObject(String objectId) throws MethodFailedException,
             InvalidResourceException, InvalidCredentialsException {
-        getCentralWebservice().markPublishedObject(
-                Arrays.asList(objectId), "Done updating object for doms-reklame-metadata-fixer");
+        call(MARK_PUBLISHED_OBJECT, writeThrottle, port -> {
+            port.markPublishedObject(
+                    Arrays.asList(objectId), "Done updating object for doms-reklame-metadata-fixer");
+            return null;
+        });
+    }
+
+    /**
+     * Marks several objects published in a single call.
+     */
+    public void markPublishedObjects(List<String> objectIds) throws MethodFailedException,
+            InvalidResourceException, InvalidCredentialsException {
+        call(MARK_PUBLISHED_OBJECT, writeThrottle, port -> {
+            port.markPublishedObject(
+                    objectIds, "Done updating object for doms-reklame-metadata-fixer");
+            return null;
+        });
     }
 
     public boolean isActive(String objectId) throws MethodFailedException,
@@ -85,6 +378,30 @@ public class DOMSClient {
 
     public String getState(String objectId) throws MethodFailedException,
             InvalidResourceException, InvalidCredentialsException {
-        return getCentralWebservice().getObjectProfile(objectId).getState();
+        return call(GET_OBJECT_PROFILE, readThrottle, port -> port.getObjectProfile(objectId).getState());
+    }
+
+    /**
+     * @return a page of the objects in the given collection and view angle modified after the given time, in the
+     * order they were modified.
+     */
+    public List<RecordDescription> getIDsModified(long since, String collectionPid, String viewAngle,
+                                                  int offset, int limit) throws MethodFailedException,
+            InvalidResourceException, InvalidCredentialsException {
+        return call(GET_IDS_MODIFIED, readThrottle,
+                port -> port.getIDsModified(since, collectionPid, viewAngle, null, offset, limit));
+    }
+
+    /**
+     * @return the latest time an object in the given collection and view angle was modified.
+     */
+    public long getLatestModified(String collectionPid, String viewAngle) throws MethodFailedException,
+            InvalidResourceException, InvalidCredentialsException {
+        return call(GET_LATEST_MODIFIED, readThrottle, port -> port.getLatestModified(collectionPid, viewAngle, null));
+    }
+
+    private interface PortCall<T> {
+        T call(CentralWebservice port) throws MethodFailedException,
+                InvalidResourceException, InvalidCredentialsException;
     }
 }
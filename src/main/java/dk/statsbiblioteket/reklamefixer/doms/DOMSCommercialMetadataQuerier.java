@@ -1,32 +1,312 @@
 package dk.statsbiblioteket.reklamefixer.doms;
 
 import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.MetadataEngine;
+import dk.statsbiblioteket.reklamefixer.Outcome;
+import dk.statsbiblioteket.reklamefixer.OutcomeListener;
+import dk.statsbiblioteket.reklamefixer.journal.ContentDigests;
+import dk.statsbiblioteket.reklamefixer.journal.DeadLetterFile;
+import dk.statsbiblioteket.reklamefixer.metrics.Metrics;
+import dk.statsbiblioteket.reklamefixer.metrics.OperationMetrics;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidCredentialsException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidResourceException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.MethodFailedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-public class DOMSCommercialMetadataQuerier {
+public class DOMSCommercialMetadataQuerier implements AutoCloseable {
     private final Logger log = LoggerFactory.getLogger(getClass());
     private final DOMSClient domsClient;
+    private final int fetchThreads;
+    private final Semaphore inFlightFetches;
+    private final MetadataEngine metadataEngine;
+    private final OperationMetrics parse = Metrics.getInstance().operation("metadata.parse");
+    private final LongAdder viewBundles = new LongAdder();
+    private final LongAdder viewBundleObjects = new LongAdder();
+    private ExecutorService executor;
+    private OutcomeListener outcomeListener = OutcomeListener.NONE;
+    private ContentDigests contentDigests;
+    private DeadLetterFile deadLetterFile;
+    private DatastreamCache datastreamCache;
+    private String viewBundleAngle;
+    private boolean streamDatastreams = false;
 
     public DOMSCommercialMetadataQuerier(DOMSClient domsClient) {
+        this(domsClient, 1, 1);
+    }
+
+    /**
+     * @param fetchThreads      number of objects retrieved from DOMS concurrently. 1 retrieves objects one at a time
+     *                          in the calling thread.
+     * @param maxInFlightFetches maximum number of retrievals submitted but not yet completed.
+     */
+    public DOMSCommercialMetadataQuerier(DOMSClient domsClient, int fetchThreads, int maxInFlightFetches) {
+        this(domsClient, fetchThreads, maxInFlightFetches, MetadataEngine.DOM);
+    }
+
+    /**
+     * @param metadataEngine the engine used to read and fix the retrieved metadata.
+     */
+    public DOMSCommercialMetadataQuerier(DOMSClient domsClient, int fetchThreads, int maxInFlightFetches,
+                                         MetadataEngine metadataEngine) {
+        if (fetchThreads < 1 || maxInFlightFetches < 1) {
+            throw new IllegalArgumentException("Fetch threads and max in-flight fetches must be positive, was "
+                    + fetchThreads + " and " + maxInFlightFetches);
+        }
         this.domsClient = domsClient;
+        this.fetchThreads = fetchThreads;
+        this.inFlightFetches = new Semaphore(maxInFlightFetches);
+        this.metadataEngine = metadataEngine;
+    }
+
+    /**
+     * Sets the listener notified when an object is retrieved or fails to be retrieved.
+     */
+    public void setOutcomeListener(OutcomeListener outcomeListener) {
+        this.outcomeListener = outcomeListener;
+    }
+
+    /**
+     * Sets the digests of contents known to be fixed. Objects whose retrieved contents match are reported as
+     * unchanged and left out of the result without being parsed.
+     */
+    public void setContentDigests(ContentDigests contentDigests) {
+        this.contentDigests = contentDigests;
+    }
+
+    /**
+     * Sets the file objects that fail to be retrieved are written to.
+     */
+    public void setDeadLetterFile(DeadLetterFile deadLetterFile) {
+        this.deadLetterFile = deadLetterFile;
+    }
+
+    /**
+     * Sets the cache contents are read from before they are retrieved from DOMS. Retrieved contents are added to it.
+     */
+    public void setDatastreamCache(DatastreamCache datastreamCache) {
+        this.datastreamCache = datastreamCache;
     }
 
+    /**
+     * Retrieves contents in the view bundles of the given view angle instead of one object at a time. The bundle of an
+     * object holds the contents of all objects in its view, so the contents of the other objects of the same
+     * retrieval found in it are used instead of retrieving them again. Contents read from a bundle are serialised
+     * again when they are split from it, so their text may differ from the contents retrieved alone.
+     * @param viewAngle the view angle of the bundles, or null to retrieve objects one at a time.
+     */
+    public void setViewBundleAngle(String viewAngle) {
+        this.viewBundleAngle = viewAngle;
+    }
+
+    /**
+     * Parses contents as they are read from the response of DOMS, instead of reading them into a String first. The
+     * contents are only streamed when they are not needed as a whole, that is when no digests, cache or view bundles
+     * are used. The time spent parsing streamed contents is part of the time of the call to DOMS.
+     */
+    public void setStreamDatastreams(boolean streamDatastreams) {
+        this.streamDatastreams = streamDatastreams;
+    }
+
+    /**
+     * Retrieves metadata for the given objects. Objects that cannot be retrieved are written to stdout and left out
+     * of the result, as are objects known to be fixed already. The result is in the same order as the given ids.
+     */
     public List<CommercialMetadata> retrieveMetadata(List<String> uuids) {
-        List<CommercialMetadata> result = new ArrayList<>();
-        for(String uuid : uuids){
+        Retrieval retrieval = new Retrieval(uuids);
+        if (fetchThreads == 1) {
+            List<CommercialMetadata> result = new ArrayList<>();
+            for(String uuid : uuids){
+                CommercialMetadata metadata = retrieve(uuid, retrieval);
+                if (metadata != null) {
+                    result.add(metadata);
+                }
+            }
+            return result;
+        }
+        return retrieveMetadataConcurrently(uuids, retrieval);
+    }
+
+    /**
+     * Retrieves the metadata of one object in the calling thread. A view bundle retrieved for the object only
+     * provides the contents of the object itself.
+     * @return the metadata, or null if the object cannot be retrieved or is known to be fixed already.
+     */
+    public CommercialMetadata retrieveObjectMetadata(String uuid) {
+        return retrieve(uuid, new Retrieval(Collections.singletonList(uuid)));
+    }
+
+    private List<CommercialMetadata> retrieveMetadataConcurrently(List<String> uuids, Retrieval retrieval) {
+        ExecutorService executor = getExecutor();
+        List<Future<CommercialMetadata>> futures = new ArrayList<>(uuids.size());
+        try {
+            for (String uuid : uuids) {
+                inFlightFetches.acquire();
+                try {
+                    futures.add(executor.submit(() -> {
+                        try {
+                            return retrieve(uuid, retrieval);
+                        } finally {
+                            inFlightFetches.release();
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    inFlightFetches.release();
+                    throw e;
+                }
+            }
+
+            List<CommercialMetadata> result = new ArrayList<>(futures.size());
+            for (Future<CommercialMetadata> future : futures) {
+                CommercialMetadata metadata = future.get();
+                if (metadata != null) {
+                    result.add(metadata);
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while retrieving metadata", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unexpected error while retrieving metadata", e.getCause());
+        }
+    }
+
+    private CommercialMetadata retrieve(String uuid, Retrieval retrieval) {
+        // Bundles retrieved from now on need not keep the contents of the object.
+        retrieval.claimed.add(uuid);
+        try {
+            if (streamDatastreams && contentDigests == null && datastreamCache == null && viewBundleAngle == null) {
+                CommercialMetadata metadata = domsClient.readDatastreamContents(uuid,
+                        contents -> metadataEngine.create(uuid, contents));
+                outcomeListener.outcome(uuid, Outcome.FETCHED);
+                return metadata;
+            }
+            String dataStream = datastreamCache == null ? null : datastreamCache.get(uuid);
+            if (dataStream == null) {
+                dataStream = retrieval.bundled.remove(uuid);
+            }
+            if (dataStream == null) {
+                dataStream = retrieveContents(uuid, retrieval);
+            }
+            String digest = null;
+            if (contentDigests != null) {
+                digest = ContentDigests.digest(dataStream);
+                if (contentDigests.isFixed(uuid, digest)) {
+                    log.debug("Contents of {} are already fixed. Skipping.", uuid);
+                    outcomeListener.outcome(uuid, Outcome.UNCHANGED);
+                    return null;
+                }
+            }
+            CommercialMetadata metadata;
+            long start = parse.start();
+            boolean parsed = false;
             try {
-                String dataStream = domsClient.getDatastreamContents(uuid);
-                result.add(new CommercialMetadata(uuid, dataStream));
-            } catch (Exception e) {
-                log.error("Error while trying to to read PBCORE from '{}'. Writing object id to stdout.", uuid, e);
-                System.out.println(uuid + "\tFailed to retrieve object.");
+                metadata = metadataEngine.create(uuid, dataStream);
+                parsed = true;
+            } finally {
+                parse.stop(start, parsed);
+            }
+            metadata.setSourceDigest(digest);
+            outcomeListener.outcome(uuid, Outcome.FETCHED);
+            return metadata;
+        } catch (Exception e) {
+            log.error("Error while trying to to read PBCORE from '{}'. Writing object id to stdout.", uuid, e);
+            // A single println per failure, so lines from concurrent fetches are never interleaved.
+            System.out.println(uuid + "\tFailed to retrieve object.");
+            if (deadLetterFile != null) {
+                deadLetterFile.failed(uuid, DeadLetterFile.RETRIEVE, e);
             }
+            outcomeListener.outcome(uuid, Outcome.FAILED);
+            return null;
         }
-        return result;
     }
 
+    /**
+     * Retrieves the contents of the object from DOMS, and adds them to the cache.
+     */
+    private String retrieveContents(String uuid, Retrieval retrieval) throws MethodFailedException,
+            InvalidResourceException, InvalidCredentialsException {
+        String dataStream = null;
+        if (viewBundleAngle != null) {
+            Map<String, String> bundle = domsClient.getDatastreamContentsInViewBundle(uuid, viewBundleAngle);
+            viewBundles.increment();
+            for (Map.Entry<String, String> entry : bundle.entrySet()) {
+                String bundledUuid = entry.getKey();
+                if (bundledUuid.equals(uuid)) {
+                    dataStream = entry.getValue();
+                } else if (retrieval.uuids.contains(bundledUuid) && retrieval.claimed.add(bundledUuid)) {
+                    retrieval.bundled.put(bundledUuid, entry.getValue());
+                } else {
+                    continue;
+                }
+                viewBundleObjects.increment();
+                if (datastreamCache != null) {
+                    datastreamCache.put(bundledUuid, entry.getValue());
+                }
+            }
+        }
+        if (dataStream == null) {
+            // Bundles are not used, or the bundle does not hold the contents of the object itself.
+            dataStream = domsClient.getDatastreamContents(uuid);
+            if (datastreamCache != null) {
+                datastreamCache.put(uuid, dataStream);
+            }
+        }
+        return dataStream;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(fetchThreads, runnable -> {
+                Thread thread = new Thread(runnable, "doms-fetch-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (viewBundles.sum() > 0) {
+            log.info("Retrieved {} objects in {} view bundles", viewBundleObjects.sum(), viewBundles.sum());
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * The state of one call of {@link #retrieveMetadata(List)}: the objects to retrieve, and the contents found in
+     * view bundles of other objects that have not been used yet. An object is claimed by the first bundle holding
+     * it, so objects running in several bundles are only kept once.
+     */
+    private static class Retrieval {
+        private final Set<String> uuids;
+        private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+        private final Map<String, String> bundled = new ConcurrentHashMap<>();
+
+        private Retrieval(List<String> uuids) {
+            this.uuids = new HashSet<>(uuids);
+        }
+    }
 }
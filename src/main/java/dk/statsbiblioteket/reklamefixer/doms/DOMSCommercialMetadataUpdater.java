@@ -1,42 +1,187 @@
 package dk.statsbiblioteket.reklamefixer.doms;
 
 import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.Outcome;
+import dk.statsbiblioteket.reklamefixer.OutcomeListener;
+import dk.statsbiblioteket.reklamefixer.journal.DeadLetterFile;
 import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidCredentialsException;
 import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidResourceException;
 import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.MethodFailedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class DOMSCommercialMetadataUpdater {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private DOMSClient domsClient;
+    private ObjectStateResolver stateResolver;
+    private int batchSize;
+    private OutcomeListener outcomeListener = OutcomeListener.NONE;
+    private DeadLetterFile deadLetterFile;
 
     public DOMSCommercialMetadataUpdater(DOMSClient domsClient) {
+        this(domsClient, 1);
+    }
+
+    /**
+     * @param batchSize number of objects marked in progress and published together in one call. 1 updates the
+     *                  objects one at a time.
+     */
+    public DOMSCommercialMetadataUpdater(DOMSClient domsClient, int batchSize) {
+        this(domsClient, new ObjectStateResolver(domsClient), batchSize);
+    }
+
+    /**
+     * @param stateResolver resolves the states of objects, so objects that are not active are skipped before any
+     *                      metadata is serialised or written.
+     */
+    public DOMSCommercialMetadataUpdater(DOMSClient domsClient, ObjectStateResolver stateResolver, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+        }
         this.domsClient = domsClient;
+        this.stateResolver = stateResolver;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the listener notified when an object is updated, is not active or fails to be updated.
+     */
+    public void setOutcomeListener(OutcomeListener outcomeListener) {
+        this.outcomeListener = outcomeListener;
+    }
+
+    /**
+     * Sets the file objects that fail to be updated are written to.
+     */
+    public void setDeadLetterFile(DeadLetterFile deadLetterFile) {
+        this.deadLetterFile = deadLetterFile;
     }
 
     public void updateMetadata(List<CommercialMetadata> metadataList) {
-        metadataList.forEach(this::update);
+        if (batchSize == 1) {
+            metadataList.forEach(this::update);
+            return;
+        }
+        for (int from = 0; from < metadataList.size(); from += batchSize) {
+            updateBatch(metadataList.subList(from, Math.min(from + batchSize, metadataList.size())));
+        }
+    }
+
+    /**
+     * Updates the metadata of one object on its own, regardless of the batch size.
+     */
+    public void updateObjectMetadata(CommercialMetadata metadata) {
+        update(metadata);
     }
 
     private void update(CommercialMetadata metadata) {
+        if (isActive(metadata.getUuid())) {
+            updateActive(metadata);
+        }
+    }
+
+    private void updateActive(CommercialMetadata metadata) {
         String objectId = metadata.getUuid();
         try {
-            if (!domsClient.isActive(objectId)) {
-                log.error("Object {} is not currently published. Cannot update. Writing object id to stdout.", objectId);
-                System.out.println(objectId + "\tObject has nonactive state: " + domsClient.getState(objectId));
-                return;
-            }
             domsClient.markInProgressObject(objectId);
             domsClient.modifyDatastream(objectId, metadata);
             domsClient.markPublishedObject(objectId);
+            reportUpdated(metadata);
+
+        } catch (MethodFailedException | InvalidResourceException | InvalidCredentialsException e) {
+            reportUpdateFailure(objectId, e);
+        }
+    }
+
+    /**
+     * Updates a batch of objects, marking them in progress and published with one call each. If a batch call fails,
+     * the objects of the batch are handled one at a time, so one failing object does not fail the others.
+     */
+    private void updateBatch(List<CommercialMetadata> batch) {
+        List<CommercialMetadata> activeMetadata = new ArrayList<>(batch.size());
+        List<String> activeIds = new ArrayList<>(batch.size());
+        for (CommercialMetadata metadata : batch) {
+            if (isActive(metadata.getUuid())) {
+                activeMetadata.add(metadata);
+                activeIds.add(metadata.getUuid());
+            }
+        }
+        if (activeIds.isEmpty()) {
+            return;
+        }
+
+        try {
+            domsClient.markInProgressObjects(activeIds);
+        } catch (MethodFailedException | InvalidResourceException | InvalidCredentialsException e) {
+            log.warn("Failed to mark batch of {} objects in progress. Updating them one at a time.",
+                    activeIds.size(), e);
+            activeMetadata.forEach(this::updateActive);
+            return;
+        }
+
+        List<CommercialMetadata> modifiedMetadata = new ArrayList<>(activeIds.size());
+        List<String> modifiedIds = new ArrayList<>(activeIds.size());
+        for (CommercialMetadata metadata : activeMetadata) {
+            String objectId = metadata.getUuid();
+            try {
+                domsClient.modifyDatastream(objectId, metadata);
+                modifiedMetadata.add(metadata);
+                modifiedIds.add(objectId);
+            } catch (MethodFailedException | InvalidResourceException | InvalidCredentialsException e) {
+                reportUpdateFailure(objectId, e);
+            }
+        }
+        if (modifiedIds.isEmpty()) {
+            return;
+        }
+
+        try {
+            domsClient.markPublishedObjects(modifiedIds);
+            modifiedMetadata.forEach(this::reportUpdated);
+        } catch (MethodFailedException | InvalidResourceException | InvalidCredentialsException e) {
+            log.warn("Failed to mark batch of {} objects published. Publishing them one at a time.",
+                    modifiedIds.size(), e);
+            for (CommercialMetadata metadata : modifiedMetadata) {
+                try {
+                    domsClient.markPublishedObject(metadata.getUuid());
+                    reportUpdated(metadata);
+                } catch (MethodFailedException | InvalidResourceException | InvalidCredentialsException e1) {
+                    reportUpdateFailure(metadata.getUuid(), e1);
+                }
+            }
+        }
+    }
 
+    private boolean isActive(String objectId) {
+        try {
+            String state = stateResolver.getState(objectId);
+            if (!ObjectStateResolver.ACTIVE_STATE.equals(state)) {
+                log.error("Object {} is not currently published. Cannot update. Writing object id to stdout.", objectId);
+                System.out.println(objectId + "\tObject has nonactive state: " + state);
+                outcomeListener.outcome(objectId, Outcome.NOT_ACTIVE);
+                return false;
+            }
+            return true;
         } catch (MethodFailedException | InvalidResourceException | InvalidCredentialsException e) {
-            log.error("Error while trying to update '{}'. Writing object id to stdout.", objectId, e);
-            System.out.println(objectId + "\tFailed to update object.");
+            reportUpdateFailure(objectId, e);
+            return false;
+        }
+    }
+
+    private void reportUpdated(CommercialMetadata metadata) {
+        outcomeListener.outcome(metadata.getUuid(), Outcome.UPDATED);
+    }
+
+    private void reportUpdateFailure(String objectId, Exception e) {
+        log.error("Error while trying to update '{}'. Writing object id to stdout.", objectId, e);
+        System.out.println(objectId + "\tFailed to update object.");
+        if (deadLetterFile != null) {
+            deadLetterFile.failed(objectId, DeadLetterFile.UPDATE, e);
         }
+        outcomeListener.outcome(objectId, Outcome.FAILED);
     }
 }
@@ -0,0 +1,297 @@
+package dk.statsbiblioteket.reklamefixer.doms;
+
+import dk.statsbiblioteket.reklamefixer.journal.HighWaterMark;
+import dk.statsbiblioteket.reklamefixer.uuids.ModifiedSinceUuidSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local copy of the PBCORE datastreams retrieved from DOMS, so repeated runs read the contents from disk instead of
+ * retrieving them again.
+ *
+ * The contents are appended to a data file as records of the object id and the contents, and an index of the latest
+ * record of each object is built when the cache is opened. A record without contents marks the contents of an object
+ * as removed. Contents are read with positional reads, so they can be read from several threads at once.
+ *
+ * Replaced and removed contents stay in the data file until it is compacted. When the cache is opened and more than
+ * half of the data file is taken by such records, the latest record of each object is copied to a new file, which
+ * then replaces the data file. A crash while compacting leaves the old data file in place.
+ *
+ * When the cache is opened, the objects of the collection modified since the cache was last validated are found in
+ * bulk with getIDsModified, and their contents are removed. The time the cache is valid up to is kept next to the
+ * data file. Objects outside the collection are never found to be modified, so the collection must hold all objects
+ * whose contents are cached.
+ */
+public class DatastreamCache implements AutoCloseable {
+
+    private static final String DATA_FILE = "datastreams.dat";
+    private static final String COMPACTED_FILE = DATA_FILE + ".compacted";
+    private static final String VALIDATED_UNTIL_FILE = "validated-until";
+    private static final int REMOVED = -1;
+    private static final int VALIDATION_PAGE_SIZE = 10000;
+    private static final int MAX_UUID_LENGTH = 1024;
+    private static final double MAX_STALE_FRACTION = 0.5;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final File dataFile;
+    private FileChannel channel;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long end;
+
+    /**
+     * Opens the cache in the given directory, creating it if it does not exist, and removes the contents of objects
+     * modified since the cache was last validated.
+     * @param collectionPid the collection holding the objects whose contents are cached.
+     * @param viewAngle     the view angle used to find the modified objects of the collection.
+     */
+    public DatastreamCache(File directory, DOMSClient domsClient, String collectionPid, String viewAngle) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new UncheckedIOException(new IOException(
+                    "Unable to create cache directory '" + directory.getAbsolutePath() + "'"));
+        }
+        this.dataFile = new File(directory, DATA_FILE);
+        try {
+            this.channel = FileChannel.open(dataFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            load();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open datastream cache '" + dataFile.getAbsolutePath() + "'", e);
+        }
+        validate(new HighWaterMark(new File(directory, VALIDATED_UNTIL_FILE)), domsClient, collectionPid, viewAngle);
+        try {
+            compact(new File(directory, COMPACTED_FILE));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to compact datastream cache '" + dataFile.getAbsolutePath() + "'",
+                    e);
+        }
+    }
+
+    /**
+     * Builds the index from the records of the data file. A record cut off by a crash is dropped.
+     */
+    private void load() throws IOException {
+        long offset = 0;
+        long size = channel.size();
+        InputStream input = new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1 << 16);
+        DataInputStream data = new DataInputStream(input);
+        try {
+            while (offset < size) {
+                int uuidLength = data.readInt();
+                if (uuidLength < 0 || uuidLength > MAX_UUID_LENGTH) {
+                    throw new EOFException("Invalid record");
+                }
+                byte[] uuid = new byte[uuidLength];
+                data.readFully(uuid);
+                int length = data.readInt();
+                if (length < REMOVED) {
+                    throw new EOFException("Invalid record");
+                }
+                long contentsOffset = offset + 4 + uuid.length + 4;
+                if (length == REMOVED) {
+                    index.remove(new String(uuid, StandardCharsets.UTF_8));
+                    length = 0;
+                } else {
+                    skipFully(data, length);
+                    index.put(new String(uuid, StandardCharsets.UTF_8), new Entry(contentsOffset, length));
+                }
+                offset = contentsOffset + length;
+            }
+        } catch (EOFException e) {
+            log.warn("Dropping incomplete or invalid record at the end of datastream cache '{}'",
+                    dataFile.getAbsolutePath());
+            channel.truncate(offset);
+        }
+        end = offset;
+        log.info("Read {} cached datastreams from '{}'", index.size(), dataFile.getAbsolutePath());
+    }
+
+    /**
+     * Copies the latest record of each object to the given file and moves it over the data file, if more than
+     * {@link #MAX_STALE_FRACTION} of the data file is taken by replaced or removed records.
+     */
+    private void compact(File compactedFile) throws IOException {
+        long live = 0;
+        for (Map.Entry<String, Entry> cached : index.entrySet()) {
+            live += 4 + cached.getKey().getBytes(StandardCharsets.UTF_8).length + 4 + cached.getValue().length;
+        }
+        if (live >= end * (1 - MAX_STALE_FRACTION)) {
+            return;
+        }
+        Map<String, Entry> compacted = new HashMap<>();
+        long position = 0;
+        try (FileChannel target = FileChannel.open(compactedFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, Entry> cached : index.entrySet()) {
+                byte[] uuidBytes = cached.getKey().getBytes(StandardCharsets.UTF_8);
+                Entry entry = cached.getValue();
+                ByteBuffer header = ByteBuffer.allocate(4 + uuidBytes.length + 4);
+                header.putInt(uuidBytes.length).put(uuidBytes).putInt(entry.length);
+                header.flip();
+                while (header.hasRemaining()) {
+                    position += target.write(header, position);
+                }
+                compacted.put(cached.getKey(), new Entry(position, entry.length));
+                long copied = 0;
+                while (copied < entry.length) {
+                    long transferred = channel.transferTo(entry.offset + copied, entry.length - copied,
+                            target.position(position + copied));
+                    if (transferred <= 0) {
+                        throw new EOFException("Cached datastream of " + cached.getKey() + " is cut off");
+                    }
+                    copied += transferred;
+                }
+                position += entry.length;
+            }
+            target.force(false);
+        }
+        channel.close();
+        Files.move(compactedFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index.putAll(compacted);
+        log.info("Compacted datastream cache '{}' from {} to {} bytes", dataFile.getAbsolutePath(), end, position);
+        end = position;
+    }
+
+    private static void skipFully(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            long skipped = input.skip(count);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private void validate(HighWaterMark validatedUntil, DOMSClient domsClient, String collectionPid,
+                          String viewAngle) {
+        long until;
+        if (index.isEmpty()) {
+            try {
+                until = domsClient.getLatestModified(collectionPid, viewAngle);
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to validate datastream cache", e);
+            }
+        } else {
+            ModifiedSinceUuidSource modified = new ModifiedSinceUuidSource(domsClient, collectionPid, viewAngle,
+                    validatedUntil.read(), VALIDATION_PAGE_SIZE);
+            int removed = 0;
+            for (String uuid : modified) {
+                if (index.containsKey(uuid)) {
+                    remove(uuid);
+                    removed++;
+                }
+            }
+            until = modified.getUntil();
+            log.info("Removed {} datastreams modified since the cache was last validated", removed);
+        }
+        try {
+            // The removals must be on disk before the cache is marked as valid without them.
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to sync datastream cache '" + dataFile.getAbsolutePath() + "'", e);
+        }
+        validatedUntil.write(until);
+    }
+
+    /**
+     * @return the cached contents of the object, or null if they are not cached.
+     */
+    public String get(String uuid) {
+        Entry entry = index.get(uuid);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                    throw new EOFException("Cached datastream of " + uuid + " is cut off");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read datastream cache '" + dataFile.getAbsolutePath() + "'", e);
+        }
+        hits.increment();
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    public void put(String uuid, String contents) {
+        append(uuid, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void remove(String uuid) {
+        append(uuid, null);
+    }
+
+    private synchronized void append(String uuid, byte[] contents) {
+        byte[] uuidBytes = uuid.getBytes(StandardCharsets.UTF_8);
+        int length = contents == null ? 0 : contents.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + uuidBytes.length + 4 + length);
+        record.putInt(uuidBytes.length).put(uuidBytes).putInt(contents == null ? REMOVED : length);
+        if (contents != null) {
+            record.put(contents);
+        }
+        record.flip();
+        try {
+            long position = end;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write datastream cache '" + dataFile.getAbsolutePath() + "'", e);
+        }
+        if (contents == null) {
+            index.remove(uuid);
+        } else {
+            index.put(uuid, new Entry(end + 4 + uuidBytes.length + 4, length));
+        }
+        end += record.limit();
+    }
+
+    @Override
+    public synchronized void close() {
+        log.info("Read {} datastreams from the cache and {} from DOMS", hits.sum(), misses.sum());
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to close datastream cache '" + dataFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    private static class Entry {
+        private final long offset;
+        private final int length;
+
+        private Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package dk.statsbiblioteket.reklamefixer.doms;
+
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidCredentialsException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidResourceException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.MethodFailedException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.RecordDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Resolves and caches object states for the duration of a run.
+ *
+ * If a collection is given, the states of all objects in the collection are loaded with a few paged
+ * getIDsModified calls before the first lookup. Objects not found that way are looked up one at a time through
+ * their object profile.
+ *
+ * The states are kept for the whole run, so preloading costs heap in proportion to the size of the collection, not
+ * to the objects processed: roughly 200 bytes per object, or 200 MB for a collection of a million objects. Leave
+ * the collection out to keep the heap bounded by the objects processed.
+ *
+ * Pages are fetched by modification time rather than by offset. Objects modified while the states are loaded, for
+ * instance by a run that is already updating objects, move to the end of the results, which would make offset based
+ * paging skip objects.
+ */
+public class ObjectStateResolver {
+    public static final String ACTIVE_STATE = "A";
+
+    private static final int PRELOAD_PAGE_SIZE = 10000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final DOMSClient domsClient;
+    private final String collectionPid;
+    private final String viewAngle;
+    private final int pageSize;
+    private final Map<String, String> states = new ConcurrentHashMap<>();
+    // Held while preloading, which calls DOMS. A lock rather than a monitor, so virtual threads waiting for the
+    // preload release their carrier threads.
+    private final Lock preloadLock = new ReentrantLock();
+    private volatile boolean preloaded;
+
+    public ObjectStateResolver(DOMSClient domsClient) {
+        this(domsClient, null, null);
+    }
+
+    /**
+     * @param collectionPid collection to preload states from, or null to look up states one object at a time.
+     * @param viewAngle     view angle used when preloading states.
+     */
+    public ObjectStateResolver(DOMSClient domsClient, String collectionPid, String viewAngle) {
+        this(domsClient, collectionPid, viewAngle, PRELOAD_PAGE_SIZE);
+    }
+
+    /**
+     * @param collectionPid collection to preload states from, or null to look up states one object at a time.
+     * @param viewAngle     view angle used when preloading states.
+     * @param pageSize      the number of states fetched in each call to DOMS when preloading.
+     */
+    public ObjectStateResolver(DOMSClient domsClient, String collectionPid, String viewAngle, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive, was " + pageSize);
+        }
+        this.domsClient = domsClient;
+        this.collectionPid = collectionPid;
+        this.viewAngle = viewAngle;
+        this.pageSize = pageSize;
+        this.preloaded = collectionPid == null;
+    }
+
+    public String getState(String objectId) throws MethodFailedException,
+            InvalidResourceException, InvalidCredentialsException {
+        preload();
+        String state = states.get(objectId);
+        if (state == null) {
+            state = domsClient.getState(objectId);
+            states.put(objectId, state);
+        }
+        return state;
+    }
+
+    public boolean isActive(String objectId) throws MethodFailedException,
+            InvalidResourceException, InvalidCredentialsException {
+        return ACTIVE_STATE.equals(getState(objectId));
+    }
+
+    private void preload() {
+        if (preloaded) {
+            return;
+        }
+        preloadLock.lock();
+        try {
+            if (!preloaded) {
+                preloadFromCollection();
+                preloaded = true;
+            }
+        } finally {
+            preloadLock.unlock();
+        }
+    }
+
+    private void preloadFromCollection() {
+        log.info("Preloading object states from collection '{}' with view angle '{}'.", collectionPid, viewAngle);
+        try {
+            // The latest modification time loaded so far. Each page starts one millisecond before it, so objects
+            // modified in the same millisecond as the last loaded object are not lost, whether DOMS includes the
+            // given time or not. Objects loaded twice just have their state replaced.
+            long lastModified = 0;
+            int offset = 0;
+            List<RecordDescription> page;
+            do {
+                page = domsClient.getIDsModified(Math.max(0, lastModified - 1), collectionPid, viewAngle, offset,
+                        pageSize);
+                long pageModified = lastModified;
+                for (RecordDescription record : page) {
+                    states.put(record.getPid(), record.getState());
+                    pageModified = Math.max(pageModified, record.getDate());
+                }
+                if (pageModified > lastModified) {
+                    lastModified = pageModified;
+                    offset = 0;
+                } else {
+                    // A full page of objects modified at the latest time, so look further ahead.
+                    offset += page.size();
+                }
+            } while (page.size() == pageSize);
+            log.info("Preloaded states for {} objects.", states.size());
+        } catch (MethodFailedException | InvalidResourceException | InvalidCredentialsException e) {
+            log.warn("Unable to preload object states. States are looked up one object at a time.", e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package dk.statsbiblioteket.reklamefixer.doms;
+
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidCredentialsException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidResourceException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.MethodFailedException;
+
+import javax.xml.ws.WebServiceException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed DOMS calls are retried and how long to wait before each retry.
+ *
+ * Failures that concern the request are never retried: invalid credentials will not become valid, and an invalid
+ * resource will not become valid by asking again. Failures of DOMS or of the connection to it, a
+ * {@link MethodFailedException} or a {@link WebServiceException} such as a timeout, are retried until maxAttempts
+ * calls have been made. The wait before retry n is a random time up to initialBackoffMillis * 2^(n-1), capped at
+ * maxBackoffMillis, so clients that failed together do not retry together.
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        if (maxAttempts < 1 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("Invalid retry policy: " + maxAttempts + " attempts, backoff from "
+                    + initialBackoffMillis + " to " + maxBackoffMillis + " ms");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * @return the maximum number of calls made, including the first.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return true if a call failing with the given exception may succeed if retried.
+     */
+    public boolean isRetryable(Exception e) {
+        if (e instanceof InvalidCredentialsException || e instanceof InvalidResourceException) {
+            return false;
+        }
+        return e instanceof MethodFailedException || e instanceof WebServiceException;
+    }
+
+    /**
+     * @param attempt the number of the attempt that failed, starting from 1.
+     * @return true if another attempt should be made after the given attempt failed with the given exception.
+     */
+    public boolean shouldRetry(int attempt, Exception e) {
+        return attempt < maxAttempts && isRetryable(e);
+    }
+
+    /**
+     * @param attempt the number of the attempt that failed, starting from 1.
+     * @return the time to wait in milliseconds before the next attempt.
+     */
+    public long getBackoffMillis(int attempt) {
+        long ceiling = initialBackoffMillis << Math.min(attempt - 1, 30);
+        if (ceiling < initialBackoffMillis || ceiling > maxBackoffMillis) {
+            ceiling = maxBackoffMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
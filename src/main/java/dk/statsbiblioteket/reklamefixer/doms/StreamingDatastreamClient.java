@@ -0,0 +1,372 @@
+package dk.statsbiblioteket.reklamefixer.doms;
+
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidCredentialsException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidResourceException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.MethodFailedException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.ws.WebServiceException;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Calls getDatastreamContents and modifyDatastream with plain SOAP requests, so datastream contents are streamed to
+ * and from DOMS instead of passing through a String.
+ *
+ * JAX-WS reads retrieved contents into a String before returning them, which is then parsed again. Here the response
+ * is read with a StAX reader, and the text of the result element is read from it as the parser needs it, so the
+ * contents are never held as a whole. Contents to store are written into the request from their UTF-8 encoding,
+ * escaping markup as they are written, instead of being decoded into a String and encoded again by JAX-WS.
+ *
+ * Faults declared by the web service are thrown as their exceptions, and failures to communicate with DOMS as
+ * {@link WebServiceException}, as JAX-WS would.
+ */
+public class StreamingDatastreamClient {
+
+    private static final String SOAP_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String CENTRAL_NAMESPACE = "http://central.doms.statsbiblioteket.dk/";
+    private static final String FAULT = "Fault";
+    private static final String FAULT_STRING = "faultstring";
+    private static final String DETAIL = "detail";
+    private static final String RESULT = "string";
+    private static final String GET_DATASTREAM_CONTENTS = "getDatastreamContents";
+    private static final String MODIFY_DATASTREAM = "modifyDatastream";
+
+    private static final byte[] ENVELOPE_START = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<S:Envelope xmlns:S=\"" + SOAP_NAMESPACE + "\"><S:Body>").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ENVELOPE_END = "</S:Body></S:Envelope>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LESS_THAN = "&lt;".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] GREATER_THAN = "&gt;".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] AMPERSAND = "&amp;".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CARRIAGE_RETURN = "&#13;".getBytes(StandardCharsets.UTF_8);
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private final String authorization;
+    private final int timeout;
+
+    /**
+     * @param timeout connect and read timeout in milliseconds.
+     */
+    public StreamingDatastreamClient(String username, String password, int timeout) {
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(
+                (username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        this.timeout = timeout;
+    }
+
+    /**
+     * Parsers of datastream contents. The contents can only be read until the parser returns.
+     */
+    public interface ContentsParser<T> {
+        T parse(Reader contents) throws IOException;
+    }
+
+    /**
+     * Runtime exceptions thrown by a {@link ContentsParser}, which concern the contents rather than the call to DOMS.
+     */
+    public static class ContentsParseException extends RuntimeException {
+        private ContentsParseException(String message, RuntimeException cause) {
+            super(message, cause);
+        }
+
+        @Override
+        public synchronized RuntimeException getCause() {
+            return (RuntimeException) super.getCause();
+        }
+    }
+
+    /**
+     * Retrieves the contents of the datastream from the web service at the given address and parses them. Runtime
+     * exceptions of the parser are thrown wrapped in a {@link ContentsParseException}, while IOExceptions, which come
+     * from reading the contents, are thrown as {@link WebServiceException}.
+     */
+    public <T> T read(String address, String objectId, String datastreamId, ContentsParser<T> parser)
+            throws MethodFailedException, InvalidResourceException, InvalidCredentialsException {
+        Parameter[] parameters = {new Parameter("pid", objectId), new Parameter("datastream", datastreamId)};
+        return call(address, GET_DATASTREAM_CONTENTS, parameters, reader -> {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && RESULT.equals(reader.getLocalName())) {
+                    try {
+                        return parser.parse(new ElementTextReader(reader));
+                    } catch (RuntimeException e) {
+                        throw new ContentsParseException("Unable to parse " + datastreamId + " of " + objectId, e);
+                    }
+                }
+            }
+            throw new XMLStreamException("Response holds no result");
+        });
+    }
+
+    /**
+     * Stores the UTF-8 encoded contents in the datastream with the web service at the given address.
+     */
+    public void modify(String address, String objectId, String datastreamId, byte[] contents, String comment)
+            throws MethodFailedException, InvalidResourceException, InvalidCredentialsException {
+        Parameter[] parameters = {new Parameter("pid", objectId), new Parameter("datastream", datastreamId),
+                new Parameter("contents", contents), new Parameter("comment", comment)};
+        call(address, MODIFY_DATASTREAM, parameters, reader -> null);
+    }
+
+    private <T> T call(String address, String operation, Parameter[] parameters, ResponseReader<T> responseReader)
+            throws MethodFailedException, InvalidResourceException, InvalidCredentialsException {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(address).openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+            connection.setRequestProperty("SOAPAction", "\"\"");
+            connection.setRequestProperty("Authorization", authorization);
+            writeRequest(connection, operation, parameters);
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_UNAUTHORIZED || status == HttpURLConnection.HTTP_FORBIDDEN) {
+                throw new InvalidCredentialsException("Access to " + address + " denied with HTTP " + status, "");
+            }
+            InputStream input = status < HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getInputStream() : connection.getErrorStream();
+            if (input == null || !isXml(connection.getContentType())) {
+                throw new WebServiceException("Unexpected response from " + address + ": HTTP " + status);
+            }
+            try {
+                return readResponse(input, operation, responseReader);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            throw new WebServiceException("Unable to call " + operation + " for " + parameters[0].text, e);
+        } catch (XMLStreamException e) {
+            throw new WebServiceException("Unable to read " + operation + " response for " + parameters[0].text, e);
+        }
+    }
+
+    private static boolean isXml(String contentType) {
+        return contentType != null && contentType.toLowerCase(Locale.ROOT).contains("xml");
+    }
+
+    /**
+     * Writes the request with the parameters as elements of the operation element, with their values escaped.
+     */
+    private static void writeRequest(HttpURLConnection connection, String operation, Parameter[] parameters)
+            throws IOException {
+        byte[] operationStart = ("<ns:" + operation + " xmlns:ns=\"" + CENTRAL_NAMESPACE + "\">")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] operationEnd = ("</ns:" + operation + ">").getBytes(StandardCharsets.UTF_8);
+        long length = ENVELOPE_START.length + operationStart.length + operationEnd.length + ENVELOPE_END.length;
+        for (Parameter parameter : parameters) {
+            length += parameter.start.length + escapedLength(parameter.value) + parameter.end.length;
+        }
+        connection.setFixedLengthStreamingMode(length);
+        try (OutputStream output = new BufferedOutputStream(connection.getOutputStream(), 1 << 16)) {
+            output.write(ENVELOPE_START);
+            output.write(operationStart);
+            for (Parameter parameter : parameters) {
+                output.write(parameter.start);
+                writeEscaped(output, parameter.value);
+                output.write(parameter.end);
+            }
+            output.write(operationEnd);
+            output.write(ENVELOPE_END);
+        }
+    }
+
+    private static long escapedLength(byte[] value) {
+        long length = value.length;
+        for (byte b : value) {
+            byte[] escape = escape(b);
+            if (escape != null) {
+                length += escape.length - 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes UTF-8 encoded text escaped as XML character data. The bytes of markup characters never occur inside the
+     * encoding of other characters, so the text can be escaped byte by byte.
+     */
+    private static void writeEscaped(OutputStream output, byte[] value) throws IOException {
+        int start = 0;
+        for (int i = 0; i < value.length; i++) {
+            byte[] escape = escape(value[i]);
+            if (escape != null) {
+                output.write(value, start, i - start);
+                output.write(escape);
+                start = i + 1;
+            }
+        }
+        output.write(value, start, value.length - start);
+    }
+
+    private static byte[] escape(byte b) {
+        switch (b) {
+            case '<':
+                return LESS_THAN;
+            case '>':
+                return GREATER_THAN;
+            case '&':
+                return AMPERSAND;
+            case '\r':
+                // Escaped, as line ends in character data are normalised to line feeds when read.
+                return CARRIAGE_RETURN;
+            default:
+                return null;
+        }
+    }
+
+    private static <T> T readResponse(InputStream input, String operation, ResponseReader<T> responseReader)
+            throws XMLStreamException, IOException, MethodFailedException, InvalidResourceException,
+            InvalidCredentialsException {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(input);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                if (FAULT.equals(reader.getLocalName()) && SOAP_NAMESPACE.equals(reader.getNamespaceURI())) {
+                    throwFault(reader, operation);
+                }
+                if (CENTRAL_NAMESPACE.equals(reader.getNamespaceURI())) {
+                    // The response element of the operation.
+                    return responseReader.read(reader);
+                }
+            }
+            throw new XMLStreamException("Response holds neither a response nor a fault");
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Throws the exception of the fault the reader is at the start of.
+     */
+    private static void throwFault(XMLStreamReader reader, String operation) throws XMLStreamException,
+            MethodFailedException, InvalidResourceException, InvalidCredentialsException {
+        String message = null;
+        String exception = null;
+        String faultInfo = "";
+        boolean inDetail = false;
+        int depth = 0;
+        while (depth >= 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 0 && FAULT_STRING.equals(reader.getLocalName())) {
+                    message = reader.getElementText();
+                } else if (depth == 1 && inDetail && exception == null) {
+                    // The element in the detail names the declared fault, and holds its fault info.
+                    exception = reader.getLocalName();
+                    faultInfo = reader.getElementText();
+                } else {
+                    inDetail = depth == 0 && DETAIL.equals(reader.getLocalName());
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        if ("InvalidResourceException".equals(exception)) {
+            throw new InvalidResourceException(message, faultInfo);
+        }
+        if ("InvalidCredentialsException".equals(exception)) {
+            throw new InvalidCredentialsException(message, faultInfo);
+        }
+        if ("MethodFailedException".equals(exception)) {
+            throw new MethodFailedException(message, faultInfo);
+        }
+        throw new WebServiceException(operation + " failed: " + message);
+    }
+
+    private interface ResponseReader<T> {
+        /**
+         * Reads the response from the start of the response element.
+         */
+        T read(XMLStreamReader reader) throws XMLStreamException, IOException;
+    }
+
+    /**
+     * A parameter of an operation, with its value encoded as UTF-8.
+     */
+    private static class Parameter {
+        private final String text;
+        private final byte[] start;
+        private final byte[] value;
+        private final byte[] end;
+
+        private Parameter(String name, String value) {
+            this(name, value, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private Parameter(String name, byte[] value) {
+            this(name, null, value);
+        }
+
+        private Parameter(String name, String text, byte[] value) {
+            this.text = text;
+            this.start = ("<" + name + ">").getBytes(StandardCharsets.UTF_8);
+            this.value = value;
+            this.end = ("</" + name + ">").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads the text of the element a StAX reader is at the start of, ending at the end of the element. The text
+     * is copied straight from the buffers of the StAX reader.
+     */
+    private static class ElementTextReader extends Reader {
+        private final XMLStreamReader reader;
+        private int offset = 0;
+        private boolean ended = false;
+
+        private ElementTextReader(XMLStreamReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read(char[] buffer, int bufferOffset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            try {
+                while (!ended) {
+                    if (isText(reader.getEventType())) {
+                        int read = reader.getTextCharacters(offset, buffer, bufferOffset, length);
+                        if (read > 0) {
+                            offset += read;
+                            return read;
+                        }
+                    }
+                    int event = reader.next();
+                    offset = 0;
+                    if (event == XMLStreamConstants.END_ELEMENT) {
+                        ended = true;
+                    } else if (event == XMLStreamConstants.START_ELEMENT) {
+                        throw new IOException("Unexpected element " + reader.getLocalName() + " in contents");
+                    }
+                }
+                return -1;
+            } catch (XMLStreamException e) {
+                throw new IOException("Unable to read datastream contents", e);
+            }
+        }
+
+        private static boolean isText(int event) {
+            return event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package dk.statsbiblioteket.reklamefixer.doms;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.namespace.QName;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splits the view bundles returned by getViewBundle into the datastreams of the objects in them.
+ *
+ * A view bundle holds the FOXML of each object in the view of an object. The contents of an inline XML datastream
+ * are the xmlContent of its current version, the datastreamVersion with the latest CREATED time. FOXML does not
+ * require the versions to be in order, so the current version is not necessarily the last. Versions without a
+ * CREATED time are taken to be older than those with one, and of versions created at the same time, the last one is
+ * current.
+ */
+public class ViewBundles {
+
+    private static final String FOXML_NAMESPACE = "info:fedora/fedora-system:def/foxml#";
+    private static final String DIGITAL_OBJECT = "digitalObject";
+    private static final String DATASTREAM = "datastream";
+    private static final String DATASTREAM_VERSION = "datastreamVersion";
+    private static final String XML_CONTENT = "xmlContent";
+    private static final QName PID = new QName("PID");
+    private static final QName ID = new QName("ID");
+    private static final QName CREATED = new QName("CREATED");
+    private static final long UNKNOWN_CREATED = Long.MIN_VALUE;
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final DatatypeFactory DATATYPE_FACTORY;
+
+    static {
+        // Namespaces declared outside the datastream contents are declared again where they are used.
+        OUTPUT_FACTORY.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+        try {
+            DATATYPE_FACTORY = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException("Unable to create XML datatype factory", e);
+        }
+    }
+
+    private ViewBundles() {
+    }
+
+    /**
+     * @return the contents of the given inline XML datastream of each object in the bundle that has it, by object id,
+     * in the order of the objects in the bundle.
+     */
+    public static Map<String, String> getDatastreams(String bundle, String datastreamId) {
+        Map<String, String> result = new LinkedHashMap<>();
+        // The CREATED time of the version of each object in the result.
+        Map<String, Long> resultCreated = new HashMap<>();
+        try {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(new StringReader(bundle));
+            try {
+                String pid = null;
+                boolean inDatastream = false;
+                long created = UNKNOWN_CREATED;
+                while (reader.hasNext()) {
+                    XMLEvent event = reader.nextEvent();
+                    if (event.isStartElement()) {
+                        StartElement element = event.asStartElement();
+                        String name = foxmlName(element.getName());
+                        if (DIGITAL_OBJECT.equals(name)) {
+                            pid = attribute(element, PID);
+                        } else if (DATASTREAM.equals(name)) {
+                            inDatastream = datastreamId.equals(attribute(element, ID));
+                        } else if (DATASTREAM_VERSION.equals(name) && inDatastream) {
+                            created = parseCreated(attribute(element, CREATED));
+                        } else if (XML_CONTENT.equals(name) && inDatastream && pid != null) {
+                            Long currentCreated = resultCreated.get(pid);
+                            if (currentCreated == null || created >= currentCreated) {
+                                result.put(pid, copyContent(reader));
+                                resultCreated.put(pid, created);
+                            } else {
+                                skipContent(reader);
+                            }
+                        }
+                    } else if (event.isEndElement()) {
+                        String name = foxmlName(event.asEndElement().getName());
+                        if (DATASTREAM.equals(name)) {
+                            inDatastream = false;
+                        } else if (DATASTREAM_VERSION.equals(name)) {
+                            created = UNKNOWN_CREATED;
+                        } else if (DIGITAL_OBJECT.equals(name)) {
+                            pid = null;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Unable to read view bundle", e);
+        }
+        return result;
+    }
+
+    /**
+     * Copies the element inside an xmlContent element, up to the end of the xmlContent element.
+     */
+    private static String copyContent(XMLEventReader reader) throws XMLStreamException {
+        StringWriter result = new StringWriter();
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(result);
+        int depth = 0;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                if (depth == 0) {
+                    break;
+                }
+                depth--;
+            } else if (depth == 0) {
+                // Whitespace around the contents is not part of them.
+                continue;
+            }
+            writer.add(event);
+        }
+        writer.close();
+        return result.toString();
+    }
+
+    /**
+     * Skips the element inside an xmlContent element, up to the end of the xmlContent element.
+     */
+    private static void skipContent(XMLEventReader reader) throws XMLStreamException {
+        int depth = 0;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                if (depth == 0) {
+                    return;
+                }
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * @return the CREATED time of a datastream version in milliseconds since the epoch, or {@link #UNKNOWN_CREATED}
+     * if it has none.
+     */
+    private static long parseCreated(String created) {
+        if (created == null) {
+            return UNKNOWN_CREATED;
+        }
+        try {
+            return DATATYPE_FACTORY.newXMLGregorianCalendar(created.trim()).toGregorianCalendar().getTimeInMillis();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid CREATED time '" + created + "' in view bundle", e);
+        }
+    }
+
+    private static String foxmlName(QName name) {
+        return FOXML_NAMESPACE.equals(name.getNamespaceURI()) ? name.getLocalPart() : null;
+    }
+
+    private static String attribute(StartElement element, QName name) {
+        Attribute attribute = element.getAttributeByName(name);
+        return attribute == null ? null : attribute.getValue();
+    }
+}
@@ -0,0 +1,161 @@
+package dk.statsbiblioteket.reklamefixer.journal;
+
+import dk.statsbiblioteket.reklamefixer.rules.FixRules;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Digests of datastream contents known to be fixed, so a repeated run can recognise an object that needs no fixing
+ * from its raw contents without parsing it.
+ *
+ * A digest is only recorded for the retrieved contents of objects that needed no fixing. Nothing is recorded for the
+ * contents written to objects that were fixed, as DOMS serialises inline XML again when it is stored, so the contents
+ * read back rarely match the bytes written. A fixed object is recorded when a later run reads it back unchanged. The
+ * digests are appended to a file as lines with the object id and the digest separated by a tab, and the latest
+ * digest of each object is loaded when the file is opened.
+ *
+ * Contents are only fixed with respect to the rules that were applied, so the first line of the file holds the
+ * digest of the fingerprint of the rules. When the file is opened with other rules, or has no such line, the digests
+ * in it are discarded and the file is started over.
+ */
+public class ContentDigests implements AutoCloseable {
+    private static final String SEPARATOR = "\t";
+    private static final String RULES_HEADER = "rules";
+    private static final String ALGORITHM = "SHA-1";
+    private static final int FLUSH_EVERY = 1000;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final File digestFile;
+    private final Map<String, String> digests = new ConcurrentHashMap<>();
+    private final Writer writer;
+    private int unflushed = 0;
+
+    /**
+     * @param fixRules the rules the recorded contents are fixed with respect to.
+     */
+    public ContentDigests(File digestFile, FixRules fixRules) {
+        this.digestFile = digestFile;
+        String header = RULES_HEADER + SEPARATOR + digest(fixRules.getFingerprint());
+        boolean loaded = load(header);
+        try {
+            this.writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(digestFile, loaded), StandardCharsets.UTF_8));
+            if (!loaded) {
+                writer.write(header + "\n");
+                writer.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open digest file '" + digestFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * Loads the digests of the file if it was written with the rules of the given header.
+     * @return true if the digests were loaded, false if the file must be started over.
+     */
+    private boolean load(String header) {
+        if (!digestFile.exists()) {
+            return false;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(digestFile), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (!header.equals(line)) {
+                if (line != null) {
+                    log.info("Discarding digests in '{}', as they were not recorded with the current fix rules",
+                            digestFile.getAbsolutePath());
+                }
+                return false;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR);
+                if (fields.length == 2) {
+                    digests.put(fields[0], fields[1]);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read digest file '" + digestFile.getAbsolutePath() + "'", e);
+        }
+        log.info("Read digests of fixed contents for {} objects from '{}'", digests.size(),
+                digestFile.getAbsolutePath());
+        return true;
+    }
+
+    /**
+     * @return true if the given digest is the digest of contents known to be fixed for the object.
+     */
+    public boolean isFixed(String uuid, String digest) {
+        return digest.equals(digests.get(uuid));
+    }
+
+    /**
+     * Records that contents with the given digest are fixed for the object.
+     */
+    public void recordFixed(String uuid, String digest) {
+        if (digest == null || digest.equals(digests.put(uuid, digest))) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                writer.write(uuid + SEPARATOR + digest + "\n");
+                if (++unflushed >= FLUSH_EVERY) {
+                    writer.flush();
+                    unflushed = 0;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(
+                        "Unable to write to digest file '" + digestFile.getAbsolutePath() + "'", e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to close digest file '" + digestFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * @return the hex encoded digest of the UTF-8 encoding of the contents.
+     */
+    public static String digest(String contents) {
+        return digest(contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the hex encoded digest of the contents.
+     */
+    public static String digest(byte[] contents) {
+        try {
+            byte[] digest = MessageDigest.getInstance(ALGORITHM).digest(contents);
+            char[] result = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                result[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+                result[2 * i + 1] = HEX[digest[i] & 0xf];
+            }
+            return new String(result);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported", e);
+        }
+    }
+}
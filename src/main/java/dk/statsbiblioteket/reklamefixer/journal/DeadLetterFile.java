@@ -0,0 +1,61 @@
+package dk.statsbiblioteket.reklamefixer.journal;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * File of objects that failed in a run, after any retries, so they can be processed again.
+ *
+ * Each failure is written as a line with the object id, the stage that failed and the error, separated by tabs. The
+ * object id comes first, so the file can be given as the list of object ids to process in the next run. Lines are
+ * flushed as they are written, as failures are expected to be rare.
+ */
+public class DeadLetterFile implements AutoCloseable {
+    private static final String SEPARATOR = "\t";
+
+    /** Stage of an object that failed to be retrieved. */
+    public static final String RETRIEVE = "retrieve";
+    /** Stage of an object the fixes failed for. */
+    public static final String FIX = "fix";
+    /** Stage of an object that failed to be updated. */
+    public static final String UPDATE = "update";
+
+    private final File file;
+    private final Writer writer;
+
+    public DeadLetterFile(File file) {
+        this.file = file;
+        try {
+            this.writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open dead letter file '" + file.getAbsolutePath() + "'", e);
+        }
+    }
+
+    public synchronized void failed(String uuid, String stage, Exception error) {
+        String reason = error.getClass().getSimpleName()
+                + (error.getMessage() == null ? "" : ": " + error.getMessage());
+        try {
+            writer.write(uuid + SEPARATOR + stage + SEPARATOR + reason.replaceAll("\\s+", " ") + "\n");
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to dead letter file '" + file.getAbsolutePath() + "'", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to close dead letter file '" + file.getAbsolutePath() + "'", e);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package dk.statsbiblioteket.reklamefixer.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The modification time up to which objects have been processed by incremental runs, kept in a file between runs.
+ *
+ * The file holds the time in milliseconds since the epoch as text. It is replaced atomically, so an interrupted
+ * write leaves the previous time in place.
+ */
+public class HighWaterMark {
+
+    private final File file;
+
+    public HighWaterMark(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the stored time, or 0 if no time has been stored, so the first run processes all objects.
+     */
+    public long read() {
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read high-water mark '" + file.getAbsolutePath() + "'", e);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Invalid high-water mark in '" + file.getAbsolutePath() + "'", e);
+        }
+    }
+
+    public void write(long modifiedTime) {
+        Path target = file.getAbsoluteFile().toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.write(temp, Long.toString(modifiedTime).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write high-water mark '" + file.getAbsolutePath() + "'", e);
+        }
+    }
+}
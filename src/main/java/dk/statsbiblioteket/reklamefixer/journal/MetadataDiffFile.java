@@ -0,0 +1,161 @@
+package dk.statsbiblioteket.reklamefixer.journal;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File of the changes the fixes would make to the metadata of each object in a dry run, written as XML.
+ *
+ * Each changed object is written as an object element with its id and asset type. It holds the lines that differ
+ * between the metadata before and after the fixes, as removed elements with the line number in the metadata before
+ * the fixes and added elements with the line number in the metadata after the fixes. Leading whitespace is left out
+ * of the lines. The metadata before the fixes should be generated the same way as the metadata after the fixes, so
+ * only the changes of the fixes differ.
+ */
+public class MetadataDiffFile implements AutoCloseable {
+
+    /**
+     * Documents differing in more lines than this, after leaving out the lines they start and end with in common, are
+     * not compared line by line, but written as one removed and one added block of lines.
+     */
+    private static final int MAX_COMPARED_LINES = 2000;
+
+    private final File file;
+    private final Writer writer;
+    private final XMLStreamWriter xmlWriter;
+
+    public MetadataDiffFile(File file) {
+        this.file = file;
+        try {
+            this.writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+            this.xmlWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+            xmlWriter.writeStartDocument("UTF-8", "1.0");
+            xmlWriter.writeCharacters("\n");
+            xmlWriter.writeStartElement("metadataDiffs");
+            xmlWriter.writeCharacters("\n");
+        } catch (IOException | XMLStreamException e) {
+            throw failure("open", e);
+        }
+    }
+
+    public synchronized void changed(String uuid, String assetType, String before, String after) {
+        String[] beforeLines = before.split("\r?\n", -1);
+        String[] afterLines = after.split("\r?\n", -1);
+        try {
+            xmlWriter.writeStartElement("object");
+            xmlWriter.writeAttribute("uuid", uuid);
+            if (assetType != null) {
+                xmlWriter.writeAttribute("assetType", assetType);
+            }
+            xmlWriter.writeCharacters("\n");
+            for (Change change : diff(beforeLines, afterLines)) {
+                xmlWriter.writeCharacters("  ");
+                xmlWriter.writeStartElement(change.added ? "added" : "removed");
+                xmlWriter.writeAttribute("line", Integer.toString(change.line + 1));
+                xmlWriter.writeCharacters(change.text.trim());
+                xmlWriter.writeEndElement();
+                xmlWriter.writeCharacters("\n");
+            }
+            xmlWriter.writeEndElement();
+            xmlWriter.writeCharacters("\n");
+        } catch (XMLStreamException e) {
+            throw failure("write to", e);
+        }
+    }
+
+    /**
+     * @return the lines removed from before and added in after, in the order they appear in the documents, found as
+     * the lines not in the longest common subsequence of lines.
+     */
+    private static List<Change> diff(String[] before, String[] after) {
+        int start = 0;
+        while (start < before.length && start < after.length && before[start].equals(after[start])) {
+            start++;
+        }
+        int beforeEnd = before.length;
+        int afterEnd = after.length;
+        while (beforeEnd > start && afterEnd > start && before[beforeEnd - 1].equals(after[afterEnd - 1])) {
+            beforeEnd--;
+            afterEnd--;
+        }
+        int beforeCount = beforeEnd - start;
+        int afterCount = afterEnd - start;
+
+        List<Change> changes = new ArrayList<>();
+        if (beforeCount > MAX_COMPARED_LINES || afterCount > MAX_COMPARED_LINES) {
+            for (int i = start; i < beforeEnd; i++) {
+                changes.add(new Change(false, i, before[i]));
+            }
+            for (int i = start; i < afterEnd; i++) {
+                changes.add(new Change(true, i, after[i]));
+            }
+            return changes;
+        }
+
+        // common[i][j] is the length of the longest common subsequence of the remaining lines from i and j
+        int[][] common = new int[beforeCount + 1][afterCount + 1];
+        for (int i = beforeCount - 1; i >= 0; i--) {
+            for (int j = afterCount - 1; j >= 0; j--) {
+                common[i][j] = before[start + i].equals(after[start + j])
+                        ? common[i + 1][j + 1] + 1 : Math.max(common[i + 1][j], common[i][j + 1]);
+            }
+        }
+        int i = 0;
+        int j = 0;
+        while (i < beforeCount || j < afterCount) {
+            if (i < beforeCount && j < afterCount && before[start + i].equals(after[start + j])) {
+                i++;
+                j++;
+            } else if (j == afterCount || i < beforeCount && common[i + 1][j] >= common[i][j + 1]) {
+                changes.add(new Change(false, start + i, before[start + i]));
+                i++;
+            } else {
+                changes.add(new Change(true, start + j, after[start + j]));
+                j++;
+            }
+        }
+        return changes;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            xmlWriter.writeEndElement();
+            xmlWriter.writeCharacters("\n");
+            xmlWriter.writeEndDocument();
+            xmlWriter.close();
+            writer.close();
+        } catch (IOException | XMLStreamException e) {
+            throw failure("close", e);
+        }
+    }
+
+    private UncheckedIOException failure(String action, Exception e) {
+        return new UncheckedIOException("Unable to " + action + " diff file '" + file.getAbsolutePath() + "'",
+                e instanceof IOException ? (IOException) e : new IOException(e));
+    }
+
+    private static class Change {
+        private final boolean added;
+        private final int line;
+        private final String text;
+
+        private Change(boolean added, int line, String text) {
+            this.added = added;
+            this.line = line;
+            this.text = text;
+        }
+    }
+}
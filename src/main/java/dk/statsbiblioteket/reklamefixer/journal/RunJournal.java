@@ -0,0 +1,119 @@
+package dk.statsbiblioteket.reklamefixer.journal;
+
+import dk.statsbiblioteket.reklamefixer.Outcome;
+import dk.statsbiblioteket.reklamefixer.OutcomeListener;
+import dk.statsbiblioteket.reklamefixer.uuids.UuidSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Append-only journal of the outcome of each object in a run, used to resume a run that was interrupted.
+ *
+ * Each outcome is written as a line with the object id and the outcome separated by a tab. Writes are buffered and
+ * synced to disk in groups, when syncEvery outcomes have been written or syncIntervalMillis has passed since the last
+ * sync, so the journal does not limit the throughput of the run. At most the last unsynced group is lost on a crash.
+ */
+public class RunJournal implements OutcomeListener, AutoCloseable {
+    private static final String SEPARATOR = "\t";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final File journalFile;
+    private final int syncEvery;
+    private final long syncIntervalMillis;
+    private final FileOutputStream outputStream;
+    private final Writer writer;
+    private int unsynced = 0;
+    private long lastSync = System.currentTimeMillis();
+
+    public RunJournal(File journalFile, int syncEvery, long syncIntervalMillis) {
+        this.journalFile = journalFile;
+        this.syncEvery = syncEvery;
+        this.syncIntervalMillis = syncIntervalMillis;
+        try {
+            this.outputStream = new FileOutputStream(journalFile, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open journal '" + journalFile.getAbsolutePath() + "'", e);
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void outcome(String uuid, Outcome outcome) {
+        try {
+            writer.write(uuid + SEPARATOR + outcome.name() + "\n");
+            unsynced++;
+            if (unsynced >= syncEvery || System.currentTimeMillis() - lastSync >= syncIntervalMillis) {
+                sync();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to journal '" + journalFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    private void sync() throws IOException {
+        writer.flush();
+        outputStream.getFD().sync();
+        unsynced = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            sync();
+            writer.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to close journal '" + journalFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * Reads the ids of the objects that need no further processing, that is objects whose latest outcome in the
+     * journal is completed. Lines that cannot be parsed, such as a line cut off by a crash, are ignored.
+     * The ids are kept in a {@link UuidSet}, so journals of millions of objects can be read.
+     * @return the completed ids, or an empty set if the journal does not exist.
+     */
+    public static Set<String> readCompletedUuids(File journalFile) {
+        Logger log = LoggerFactory.getLogger(RunJournal.class);
+        Set<String> result = new UuidSet();
+        if (journalFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(SEPARATOR);
+                    if (fields.length != 2) {
+                        log.warn("Ignoring malformed journal line '{}'", line);
+                        continue;
+                    }
+                    try {
+                        if (Outcome.valueOf(fields[1]).isCompleted()) {
+                            result.add(fields[0]);
+                        } else {
+                            result.remove(fields[0]);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        log.warn("Ignoring malformed journal line '{}'", line);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read journal '" + journalFile.getAbsolutePath() + "'", e);
+            }
+        }
+        log.info("Read {} completed objects from journal '{}'", result.size(), journalFile.getAbsolutePath());
+        return result;
+    }
+}
@@ -0,0 +1,145 @@
+package dk.statsbiblioteket.reklamefixer.metrics;
+
+import dk.statsbiblioteket.reklamefixer.Outcome;
+import dk.statsbiblioteket.reklamefixer.OutcomeListener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a run: the operations timed while objects are retrieved, fixed and updated, and the number of objects
+ * with each outcome.
+ *
+ * Operations are registered on first use and shared by all threads. The metrics of the running program are
+ * available from {@link #getInstance()}, so any class can time its operations without the metrics being passed
+ * around.
+ */
+public class Metrics implements OutcomeListener {
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final Map<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+    private volatile long startNanos = System.nanoTime();
+    private volatile long expectedObjects;
+
+    public Metrics() {
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, new LongAdder());
+        }
+    }
+
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the metrics of the operation with the given name, registered if not seen before.
+     */
+    public OperationMetrics operation(String name) {
+        OperationMetrics operation = operations.get(name);
+        if (operation == null) {
+            operation = operations.computeIfAbsent(name, OperationMetrics::new);
+        }
+        return operation;
+    }
+
+    /**
+     * @return the registered operations ordered by name.
+     */
+    public List<OperationMetrics> getOperations() {
+        List<OperationMetrics> result = new ArrayList<>(operations.values());
+        result.sort(Comparator.comparing(OperationMetrics::getName));
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Marks the start of a run, used to calculate the throughput and the remaining time of the run.
+     * @param expectedObjects the number of objects the run is expected to process, or a negative number if unknown.
+     */
+    public void startRun(long expectedObjects) {
+        this.expectedObjects = expectedObjects;
+        this.startNanos = System.nanoTime();
+    }
+
+    public long getExpectedObjects() {
+        return expectedObjects;
+    }
+
+    /**
+     * @return the time in nanoseconds since the run was started.
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    @Override
+    public void outcome(String uuid, Outcome outcome) {
+        outcomes.get(outcome).increment();
+    }
+
+    public long getOutcomeCount(Outcome outcome) {
+        return outcomes.get(outcome).sum();
+    }
+
+    /**
+     * @return the number of objects that are done, whether completed or failed.
+     */
+    public long getProcessedObjects() {
+        long result = 0;
+        for (Outcome outcome : Outcome.values()) {
+            if (outcome != Outcome.FETCHED) {
+                result += getOutcomeCount(outcome);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the metrics as tab separated lines. Outcome lines are 'outcome', the outcome and the number of
+     * objects. Operation lines are 'operation', the name, the number of successes, failures and calls in flight,
+     * and the mean, 50th, 90th, 99th percentile and maximum latency in microseconds.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("elapsedMillis\t" + getElapsedNanos() / 1000000);
+        for (Outcome outcome : Outcome.values()) {
+            out.println("outcome\t" + outcome + "\t" + getOutcomeCount(outcome));
+        }
+        for (OperationMetrics operation : getOperations()) {
+            LatencyHistogram latencies = operation.getLatencies();
+            out.println("operation\t" + operation.getName()
+                    + "\t" + operation.getSuccesses()
+                    + "\t" + operation.getFailures()
+                    + "\t" + operation.getInFlight()
+                    + "\t" + Math.round(latencies.getMean() / 1000)
+                    + "\t" + latencies.getValueAtPercentile(50) / 1000
+                    + "\t" + latencies.getValueAtPercentile(90) / 1000
+                    + "\t" + latencies.getValueAtPercentile(99) / 1000
+                    + "\t" + latencies.getMax() / 1000);
+        }
+        out.flush();
+        if (out.checkError()) {
+            throw new IOException("Unable to write metrics");
+        }
+    }
+
+    public void writeTo(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writeTo(writer);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package dk.statsbiblioteket.reklamefixer.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies, successes, failures and calls in flight of a single operation.
+ *
+ * A call is timed by calling {@link #start()} before it and {@link #stop(long, boolean)} with the returned start
+ * time after it:
+ * <pre>
+ * long start = operation.start();
+ * boolean success = false;
+ * try {
+ *     ...
+ *     success = true;
+ * } finally {
+ *     operation.stop(start, success);
+ * }
+ * </pre>
+ */
+public class OperationMetrics {
+
+    private final String name;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the start time to give to {@link #stop(long, boolean)}.
+     */
+    public long start() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    public void stop(long start, boolean success) {
+        latencies.record(System.nanoTime() - start);
+        inFlight.decrementAndGet();
+        if (success) {
+            successes.increment();
+        } else {
+            failures.increment();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the latencies in nanoseconds of both successful and failed calls.
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public long getSuccesses() {
+        return successes.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the number of calls started but not yet stopped.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,85 @@
+package dk.statsbiblioteket.reklamefixer.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs the progress of a run at a fixed interval: the number of objects processed, the throughput, the estimated
+ * time left and the latencies of the timed operations.
+ */
+public class ProgressReporter implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ProgressReporter.class);
+
+    private final Metrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private long lastProcessed;
+    private long lastNanos;
+
+    public ProgressReporter(Metrics metrics, int intervalSeconds) {
+        this.metrics = metrics;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Logs the current progress.
+     */
+    public synchronized void report() {
+        long processed = metrics.getProcessedObjects();
+        long elapsed = metrics.getElapsedNanos();
+        long expected = metrics.getExpectedObjects();
+        double rate = processed / seconds(elapsed);
+        double recentRate = (processed - lastProcessed) / seconds(elapsed - lastNanos);
+        lastProcessed = processed;
+        lastNanos = elapsed;
+
+        if (expected < 0) {
+            log.info(String.format(Locale.ROOT,
+                    "Processed %d objects in %s. %.1f objects/s overall, %.1f objects/s recently.",
+                    processed, formatDuration(elapsed / 1000000000L), rate, recentRate));
+        } else {
+            String eta = rate > 0 && expected > processed
+                    ? formatDuration((long) ((expected - processed) / rate)) : "unknown";
+            log.info(String.format(Locale.ROOT,
+                    "Processed %d of %d objects (%.1f%%) in %s. %.1f objects/s overall, %.1f objects/s recently. "
+                            + "Estimated time left: %s.",
+                    processed, expected, expected == 0 ? 100.0 : 100.0 * processed / expected,
+                    formatDuration(elapsed / 1000000000L), rate, recentRate, eta));
+        }
+        for (OperationMetrics operation : metrics.getOperations()) {
+            LatencyHistogram latencies = operation.getLatencies();
+            log.info(String.format(Locale.ROOT,
+                    "  %-32s %8d ok %6d failed %4d in flight  p50 %8.1f ms  p99 %8.1f ms  max %8.1f ms",
+                    operation.getName(), operation.getSuccesses(), operation.getFailures(),
+                    operation.getInFlight(), millis(latencies.getValueAtPercentile(50)),
+                    millis(latencies.getValueAtPercentile(99)), millis(latencies.getMax())));
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return Math.max(nanos, 1) / 1e9;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String formatDuration(long seconds) {
+        return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,54 @@
+package dk.statsbiblioteket.reklamefixer.rules;
+
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+
+/**
+ * The edits a {@link FixRule} can make to commercial metadata. Each edit is supported by every metadata engine.
+ */
+public enum FixAction {
+    /** Moves the alternative title to the description, see {@link CommercialMetadata#moveAlternativeTitle()}. */
+    MOVE_ALTERNATIVE_TITLE("moveAlternativeTitle") {
+        @Override
+        public boolean apply(CommercialMetadata metadata) {
+            return metadata.moveAlternativeTitle();
+        }
+    },
+    /** Inserts the TV 2 publishers, see {@link CommercialMetadata#insertTv2Info()}. */
+    INSERT_TV2_INFO("insertTv2Info") {
+        @Override
+        public boolean apply(CommercialMetadata metadata) {
+            return metadata.insertTv2Info();
+        }
+    };
+
+    private final String configName;
+
+    FixAction(String configName) {
+        this.configName = configName;
+    }
+
+    /**
+     * @return true if the metadata was changed.
+     */
+    public abstract boolean apply(CommercialMetadata metadata);
+
+    /**
+     * @return the name of the action in the configuration.
+     */
+    public String getConfigName() {
+        return configName;
+    }
+
+    /**
+     * @return the action with the given name in the configuration.
+     * @throws IllegalArgumentException if there is no action with the given name.
+     */
+    public static FixAction forConfigName(String configName) {
+        for (FixAction action : values()) {
+            if (action.configName.equals(configName)) {
+                return action;
+            }
+        }
+        throw new IllegalArgumentException("Unknown fix action '" + configName + "'");
+    }
+}
@@ -0,0 +1,51 @@
+package dk.statsbiblioteket.reklamefixer.rules;
+
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+
+/**
+ * Conditions on commercial metadata, besides its asset type, that a {@link FixRule} can require.
+ */
+public enum FixCondition {
+    /** The metadata has a title group with the title type alternative. */
+    HAS_ALTERNATIVE_TITLE("hasAlternativeTitle") {
+        @Override
+        public boolean test(CommercialMetadata metadata) {
+            return metadata.hasAlternativeTitle();
+        }
+    },
+    /** The metadata has a pbcoreInstantiation. */
+    HAS_INSTANTIATION("hasInstantiation") {
+        @Override
+        public boolean test(CommercialMetadata metadata) {
+            return metadata.hasInstantiation();
+        }
+    };
+
+    private final String configName;
+
+    FixCondition(String configName) {
+        this.configName = configName;
+    }
+
+    public abstract boolean test(CommercialMetadata metadata);
+
+    /**
+     * @return the name of the condition in the configuration.
+     */
+    public String getConfigName() {
+        return configName;
+    }
+
+    /**
+     * @return the condition with the given name in the configuration.
+     * @throws IllegalArgumentException if there is no condition with the given name.
+     */
+    public static FixCondition forConfigName(String configName) {
+        for (FixCondition condition : values()) {
+            if (condition.configName.equals(configName)) {
+                return condition;
+            }
+        }
+        throw new IllegalArgumentException("Unknown fix condition '" + configName + "'");
+    }
+}
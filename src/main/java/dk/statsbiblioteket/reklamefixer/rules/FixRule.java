@@ -0,0 +1,101 @@
+package dk.statsbiblioteket.reklamefixer.rules;
+
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fix of commercial metadata: the metadata it applies to, given by an asset type and conditions, and the actions
+ * applied to such metadata, in order.
+ */
+public class FixRule {
+
+    private final String name;
+    private final String assetType;
+    private final FixCondition[] conditions;
+    private final boolean[] expected;
+    private final FixAction[] actions;
+
+    /**
+     * @param assetType  the asset type the rule applies to, or null if it applies to all asset types.
+     * @param conditions conditions the metadata must meet, each mapped to true if it must hold and false if it must
+     *                   not hold.
+     * @param actions    the actions to apply, in order.
+     */
+    public FixRule(String name, String assetType, Map<FixCondition, Boolean> conditions, List<FixAction> actions) {
+        if (actions.isEmpty()) {
+            throw new IllegalArgumentException("Fix rule '" + name + "' has no actions");
+        }
+        this.name = name;
+        this.assetType = assetType;
+        this.conditions = conditions.keySet().toArray(new FixCondition[0]);
+        this.expected = new boolean[this.conditions.length];
+        for (int i = 0; i < this.conditions.length; i++) {
+            expected[i] = conditions.get(this.conditions[i]);
+        }
+        this.actions = actions.toArray(new FixAction[0]);
+    }
+
+    public FixRule(String name, String assetType, FixAction... actions) {
+        this(name, assetType, Collections.emptyMap(), Arrays.asList(actions));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the asset type the rule applies to, or null if it applies to all asset types.
+     */
+    public String getAssetType() {
+        return assetType;
+    }
+
+    public Map<FixCondition, Boolean> getConditions() {
+        Map<FixCondition, Boolean> result = new EnumMap<>(FixCondition.class);
+        for (int i = 0; i < conditions.length; i++) {
+            result.put(conditions[i], expected[i]);
+        }
+        return result;
+    }
+
+    public List<FixAction> getActions() {
+        List<FixAction> result = new ArrayList<>();
+        Collections.addAll(result, actions);
+        return result;
+    }
+
+    /**
+     * @return true if the metadata meets the conditions of the rule. The asset type is matched by {@link FixRules}.
+     */
+    public boolean matches(CommercialMetadata metadata) {
+        for (int i = 0; i < conditions.length; i++) {
+            if (conditions[i].test(metadata) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies all actions of the rule, in order.
+     * @return true if any action changed the metadata.
+     */
+    public boolean apply(CommercialMetadata metadata) {
+        boolean changed = false;
+        for (FixAction action : actions) {
+            changed |= action.apply(metadata);
+        }
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
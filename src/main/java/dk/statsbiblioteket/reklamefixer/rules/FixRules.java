@@ -0,0 +1,73 @@
+package dk.statsbiblioteket.reklamefixer.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rules fixing commercial metadata, in the order they are applied.
+ *
+ * The rules are grouped by asset type when the rule set is created, so finding the rules for a document is a single
+ * map lookup. Rules for all asset types are included in the group of every asset type, in their place in the order.
+ * All rules that match a document are applied to it, in order, in one pass.
+ */
+public class FixRules {
+
+    /** The rules applied when no rules are configured: the fixes of cinema and TV 2 commercials. */
+    public static final FixRules DEFAULT = new FixRules(Arrays.asList(
+            new FixRule("cinema", "Biografreklamefilm", FixAction.MOVE_ALTERNATIVE_TITLE),
+            new FixRule("tv2", "Tv2reklamefilm", FixAction.INSERT_TV2_INFO, FixAction.MOVE_ALTERNATIVE_TITLE)));
+
+    private final List<FixRule> rules;
+    private final Map<String, List<FixRule>> rulesByAssetType = new HashMap<>();
+    private final List<FixRule> rulesForAllAssetTypes = new ArrayList<>();
+
+    public FixRules(List<FixRule> rules) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        for (FixRule rule : rules) {
+            if (rule.getAssetType() == null) {
+                rulesForAllAssetTypes.add(rule);
+                rulesByAssetType.values().forEach(group -> group.add(rule));
+            } else {
+                rulesByAssetType.computeIfAbsent(rule.getAssetType(), key -> new ArrayList<>(rulesForAllAssetTypes))
+                        .add(rule);
+            }
+        }
+    }
+
+    public List<FixRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * @return a description of what the rules do, in the order they are applied, which differs between rule sets
+     * that fix metadata differently. The names of the rules are not part of it.
+     */
+    public String getFingerprint() {
+        StringBuilder fingerprint = new StringBuilder();
+        for (FixRule rule : rules) {
+            fingerprint.append(rule.getAssetType() == null ? "" : rule.getAssetType()).append('\t');
+            for (Map.Entry<FixCondition, Boolean> condition : rule.getConditions().entrySet()) {
+                fingerprint.append(condition.getValue() ? "" : "!").append(condition.getKey().getConfigName())
+                        .append(',');
+            }
+            fingerprint.append('\t');
+            for (FixAction action : rule.getActions()) {
+                fingerprint.append(action.getConfigName()).append(',');
+            }
+            fingerprint.append('\n');
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * @return the rules for the given asset type, in order. The conditions of the rules are not checked.
+     */
+    public List<FixRule> getRules(String assetType) {
+        List<FixRule> result = assetType == null ? null : rulesByAssetType.get(assetType);
+        return result == null ? rulesForAllAssetTypes : result;
+    }
+}
@@ -0,0 +1,117 @@
+package dk.statsbiblioteket.reklamefixer.uuids;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Ids read from a stream with one id per line, such as the bundled list of commercials, a file or stdin.
+ *
+ * Anything after a tab on a line is ignored, so a dead letter file can be read as is. Blank lines are skipped. The
+ * stream is read one line at a time as the ids are iterated, and can only be iterated once.
+ */
+public class LineUuidSource implements UuidSource {
+
+    private final String name;
+    private final BufferedReader reader;
+    private boolean iterated = false;
+
+    public LineUuidSource(String name, InputStream in) {
+        this.name = name;
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the ids in the given classpath resource.
+     */
+    public static LineUuidSource forResource(String resource) {
+        InputStream in = LineUuidSource.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IllegalArgumentException("No ids found at classpath resource '" + resource + "'");
+        }
+        return new LineUuidSource("classpath:" + resource, in);
+    }
+
+    /**
+     * @return the ids in the given file.
+     */
+    public static LineUuidSource forFile(File file) throws FileNotFoundException {
+        return new LineUuidSource(file.getAbsolutePath(), new FileInputStream(file));
+    }
+
+    /**
+     * @return the ids given on stdin. Closing the source does not close stdin.
+     */
+    public static LineUuidSource forStdin() {
+        return new LineUuidSource("stdin", new FilterInputStream(System.in) {
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @Override
+    public synchronized Iterator<String> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("Ids from " + name + " can only be iterated once");
+        }
+        iterated = true;
+        return new Iterator<String>() {
+            private String next = readNext();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                String result = next;
+                next = readNext();
+                return result;
+            }
+        };
+    }
+
+    private String readNext() {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                String uuid = (tab < 0 ? line : line.substring(0, tab)).trim();
+                if (!uuid.isEmpty()) {
+                    return uuid;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read ids from " + name, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to close " + name, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
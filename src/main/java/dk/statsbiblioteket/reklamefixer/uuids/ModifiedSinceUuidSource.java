@@ -0,0 +1,149 @@
+package dk.statsbiblioteket.reklamefixer.uuids;
+
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.RecordDescription;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSClient;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Ids of the objects in a DOMS collection modified after a given time, fetched with getIDsModified a page at a time
+ * as the ids are iterated.
+ *
+ * Pages are fetched by modification time rather than by offset. Objects updated by the run itself get a new
+ * modification time and move to the end of the results, which would make offset based paging skip objects. For the
+ * same reason, only objects modified before the iteration started are returned, so objects updated by the run are
+ * not returned again.
+ */
+public class ModifiedSinceUuidSource implements UuidSource {
+
+    /** Returned by {@link #getUntil()} before the ids have been iterated. */
+    public static final long UNKNOWN_UNTIL = -1;
+
+    private final DOMSClient domsClient;
+    private final String collectionPid;
+    private final String viewAngle;
+    private final long since;
+    private final int pageSize;
+    private volatile long until = UNKNOWN_UNTIL;
+
+    /**
+     * @param since    only objects modified after this time, in milliseconds since the epoch, are returned.
+     * @param pageSize the number of ids fetched in each call to DOMS.
+     */
+    public ModifiedSinceUuidSource(DOMSClient domsClient, String collectionPid, String viewAngle, long since,
+                                   int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive, was " + pageSize);
+        }
+        this.domsClient = domsClient;
+        this.collectionPid = collectionPid;
+        this.viewAngle = viewAngle;
+        this.since = since;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        until = fetch(() -> domsClient.getLatestModified(collectionPid, viewAngle));
+        return new ModifiedSinceIterator(until);
+    }
+
+    /**
+     * @return the modification time up to which the latest iteration returns objects, or {@link #UNKNOWN_UNTIL} if
+     * the ids have not been iterated. Once all ids have been processed, this is the time to process objects modified
+     * after in the next run.
+     */
+    public long getUntil() {
+        return until;
+    }
+
+    private class ModifiedSinceIterator implements Iterator<String> {
+        private final long until;
+        private final Deque<String> page = new ArrayDeque<>();
+        // The latest modification time returned so far, and the objects returned with exactly that time.
+        private long lastModified = since;
+        private final Set<String> returnedAtLastModified = new HashSet<>();
+        private boolean exhausted = false;
+
+        private ModifiedSinceIterator(long until) {
+            this.until = until;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (page.isEmpty() && !exhausted) {
+                fetchPage();
+            }
+            return !page.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.poll();
+        }
+
+        /**
+         * Fetches the next objects after the latest returned modification time. The query starts one millisecond
+         * earlier, so objects modified in the same millisecond as the last returned object are not lost, whether
+         * DOMS includes the given time or not. Objects that were already returned are skipped.
+         */
+        private void fetchPage() {
+            int offset = 0;
+            while (page.isEmpty()) {
+                int pageOffset = offset;
+                List<RecordDescription> records = fetch(() -> domsClient.getIDsModified(
+                        Math.max(0, lastModified - 1), collectionPid, viewAngle, pageOffset, pageSize));
+                boolean pastUntil = false;
+                for (RecordDescription record : records) {
+                    long modified = record.getDate();
+                    if (modified > until) {
+                        pastUntil = true;
+                        break;
+                    }
+                    if (modified > lastModified) {
+                        lastModified = modified;
+                        returnedAtLastModified.clear();
+                    } else if (modified < lastModified || returnedAtLastModified.isEmpty()
+                            || returnedAtLastModified.contains(record.getPid())) {
+                        // Returned already, or modified at the given since time, which is not after it.
+                        continue;
+                    }
+                    returnedAtLastModified.add(record.getPid());
+                    page.add(record.getPid());
+                }
+                if (pastUntil || records.size() < pageSize) {
+                    exhausted = true;
+                    return;
+                }
+                // A full page of objects that were all returned already, so look further ahead.
+                offset += pageSize;
+            }
+        }
+    }
+
+    private <T> T fetch(DomsQuery<T> query) {
+        try {
+            return query.call();
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to fetch ids modified since " + since + " in " + collectionPid, e);
+        }
+    }
+
+    private interface DomsQuery<T> {
+        T call() throws Exception;
+    }
+
+    @Override
+    public String toString() {
+        return "objects in " + collectionPid + " modified since " + since;
+    }
+}
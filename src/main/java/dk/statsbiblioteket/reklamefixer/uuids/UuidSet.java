@@ -0,0 +1,323 @@
+package dk.statsbiblioteket.reklamefixer.uuids;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of DOMS object ids that iterates the ids in the order they were added, storing each id of the form
+ * uuid:xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx as two longs in primitive arrays rather than as a String.
+ *
+ * Such an id takes 16 bytes for the two longs and 8 to 16 bytes for its slots in an open-addressing hash table with
+ * linear probing, which is kept at most half full, or up to 48 bytes counting spare capacity. The same id as a String
+ * in a HashSet takes well over 100 bytes. Ids of any other form, such as ids in upper case, are kept as Strings on the
+ * side, so the set holds any id and iterates it back unchanged.
+ *
+ * Removed ids leave a hole in the order until the set next needs to grow. Not thread safe.
+ */
+public class UuidSet extends AbstractSet<String> {
+
+    private static final String PREFIX = "uuid:";
+    private static final int LENGTH = PREFIX.length() + 36;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The ids in the order they were added, as the high and low 64 bits of the UUID. */
+    private long[] highs = new long[INITIAL_CAPACITY];
+    private long[] lows = new long[INITIAL_CAPACITY];
+    /** The number of entries in highs and lows, including removed ones. */
+    private int entries;
+    private final BitSet removed = new BitSet();
+    /** Entries holding an id of another form, which is kept in otherIds rather than in highs and lows. */
+    private final Map<Integer, String> otherIds = new HashMap<>();
+    private final Map<String, Integer> otherEntries = new HashMap<>();
+    /** Hash table of entry + 1 for the ids in highs and lows, 0 for an empty slot. */
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int size;
+
+    public UuidSet() {
+    }
+
+    public UuidSet(Iterable<String> ids) {
+        for (String id : ids) {
+            add(id);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String id = (String) o;
+        if (!isCompact(id)) {
+            return otherEntries.containsKey(id);
+        }
+        return findSlot(high(id), low(id)) >= 0;
+    }
+
+    @Override
+    public boolean add(String id) {
+        if (contains(id)) {
+            return false;
+        }
+        ensureCapacity();
+        int entry = entries++;
+        if (isCompact(id)) {
+            long high = high(id);
+            long low = low(id);
+            highs[entry] = high;
+            lows[entry] = low;
+            slots[-findSlot(high, low) - 1] = entry + 1;
+        } else {
+            otherIds.put(entry, id);
+            otherEntries.put(id, entry);
+        }
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String id = (String) o;
+        int entry;
+        if (isCompact(id)) {
+            int slot = findSlot(high(id), low(id));
+            if (slot < 0) {
+                return false;
+            }
+            entry = slots[slot] - 1;
+            deleteSlot(slot);
+        } else {
+            Integer otherEntry = otherEntries.remove(id);
+            if (otherEntry == null) {
+                return false;
+            }
+            entry = otherEntry;
+            otherIds.remove(entry);
+        }
+        removed.set(entry);
+        size--;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        highs = new long[INITIAL_CAPACITY];
+        lows = new long[INITIAL_CAPACITY];
+        entries = 0;
+        removed.clear();
+        otherIds.clear();
+        otherEntries.clear();
+        slots = new int[INITIAL_CAPACITY * 2];
+        size = 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = removed.nextClearBit(0);
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return next < entries;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = removed.nextClearBit(next + 1);
+                return get(last);
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0 || removed.get(last)) {
+                    throw new IllegalStateException();
+                }
+                UuidSet.this.remove(get(last));
+            }
+        };
+    }
+
+    private String get(int entry) {
+        String otherId = otherIds.get(entry);
+        return otherId != null ? otherId : format(highs[entry], lows[entry]);
+    }
+
+    /**
+     * Makes room for one more entry, dropping removed entries if at least a quarter of the entries are removed and
+     * otherwise doubling the capacity.
+     */
+    private void ensureCapacity() {
+        if (entries == highs.length) {
+            int live = entries - removed.cardinality();
+            int capacity = live * 4 <= entries * 3 ? highs.length : highs.length * 2;
+            compact(capacity);
+        }
+        if ((size + 1) * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+    }
+
+    private void compact(int capacity) {
+        long[] newHighs = new long[capacity];
+        long[] newLows = new long[capacity];
+        Map<Integer, String> newOtherIds = new HashMap<>();
+        int newEntries = 0;
+        for (int entry = 0; entry < entries; entry++) {
+            if (removed.get(entry)) {
+                continue;
+            }
+            String otherId = otherIds.get(entry);
+            if (otherId != null) {
+                newOtherIds.put(newEntries, otherId);
+                otherEntries.put(otherId, newEntries);
+            } else {
+                newHighs[newEntries] = highs[entry];
+                newLows[newEntries] = lows[entry];
+            }
+            newEntries++;
+        }
+        highs = newHighs;
+        lows = newLows;
+        entries = newEntries;
+        removed.clear();
+        otherIds.clear();
+        otherIds.putAll(newOtherIds);
+        rehash(slots.length);
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int entry = 0; entry < entries; entry++) {
+            if (!removed.get(entry) && !otherIds.containsKey(entry)) {
+                slots[-findSlot(highs[entry], lows[entry]) - 1] = entry + 1;
+            }
+        }
+    }
+
+    /**
+     * @return the slot holding the given id, or -(slot + 1) for the empty slot the id would be put in.
+     */
+    private int findSlot(long high, long low) {
+        int mask = slots.length - 1;
+        int slot = hash(high, low) & mask;
+        while (slots[slot] != 0) {
+            int entry = slots[slot] - 1;
+            if (highs[entry] == high && lows[entry] == low) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    /**
+     * Empties the given slot and moves later entries of the same probe sequence back, so they are still found
+     * without tombstones.
+     */
+    private void deleteSlot(int slot) {
+        int mask = slots.length - 1;
+        int hole = slot;
+        int next = hole;
+        while (true) {
+            next = (next + 1) & mask;
+            if (slots[next] == 0) {
+                slots[hole] = 0;
+                return;
+            }
+            int entry = slots[next] - 1;
+            int home = hash(highs[entry], lows[entry]) & mask;
+            boolean homeBetween = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!homeBetween) {
+                slots[hole] = slots[next];
+                hole = next;
+            }
+        }
+    }
+
+    private static int hash(long high, long low) {
+        long hash = high * 0x9E3779B97F4A7C15L + low;
+        hash = (hash ^ (hash >>> 32)) * 0xD6E8FEB86659FD93L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * @return true if the id is of the form uuid:xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx with lower case hex digits.
+     */
+    private static boolean isCompact(String id) {
+        if (id.length() != LENGTH || !id.startsWith(PREFIX)) {
+            return false;
+        }
+        for (int i = PREFIX.length(); i < LENGTH; i++) {
+            char c = id.charAt(i);
+            if (isDashPosition(i) ? c != '-' : !(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDashPosition(int i) {
+        int position = i - PREFIX.length();
+        return position == 8 || position == 13 || position == 18 || position == 23;
+    }
+
+    private static long high(String id) {
+        return parseHex(id, PREFIX.length(), PREFIX.length() + 18);
+    }
+
+    private static long low(String id) {
+        return parseHex(id, PREFIX.length() + 19, LENGTH);
+    }
+
+    private static long parseHex(String id, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            if (!isDashPosition(i)) {
+                value = value << 4 | Character.digit(id.charAt(i), 16);
+            }
+        }
+        return value;
+    }
+
+    private static String format(long high, long low) {
+        char[] chars = Arrays.copyOf(PREFIX.toCharArray(), LENGTH);
+        formatHex(high, chars, PREFIX.length() + 18);
+        chars[PREFIX.length() + 18] = '-';
+        formatHex(low, chars, LENGTH);
+        return new String(chars);
+    }
+
+    /**
+     * Writes the 16 hex digits of the value backwards from the given end, inserting dashes at their positions.
+     */
+    private static void formatHex(long value, char[] chars, int end) {
+        int i = end;
+        for (int digit = 0; digit < 16; digit++) {
+            i--;
+            if (isDashPosition(i)) {
+                chars[i] = '-';
+                i--;
+            }
+            chars[i] = Character.forDigit((int) (value & 0xf), 16);
+            value >>>= 4;
+        }
+    }
+}
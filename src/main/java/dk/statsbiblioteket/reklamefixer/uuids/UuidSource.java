@@ -0,0 +1,49 @@
+package dk.statsbiblioteket.reklamefixer.uuids;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Source of the ids of the objects to process.
+ *
+ * Ids are read lazily as the run iterates over them, so a source never has to hold all ids in memory. Sources read
+ * from a stream or DOMS can only be iterated once, and must be closed when no longer used.
+ */
+public interface UuidSource extends Iterable<String>, AutoCloseable {
+
+    /** Size of a source that does not know how many ids it holds. */
+    long UNKNOWN_SIZE = -1;
+
+    /**
+     * @return the number of ids in the source, or {@link #UNKNOWN_SIZE} if the ids are not known in advance.
+     */
+    default long size() {
+        return UNKNOWN_SIZE;
+    }
+
+    @Override
+    default void close() {
+    }
+
+    /**
+     * @return a source of the ids in the given list, which may be iterated any number of times.
+     */
+    static UuidSource of(List<String> uuids) {
+        return new UuidSource() {
+            @Override
+            public Iterator<String> iterator() {
+                return uuids.iterator();
+            }
+
+            @Override
+            public long size() {
+                return uuids.size();
+            }
+
+            @Override
+            public String toString() {
+                return "list of " + uuids.size() + " ids";
+            }
+        };
+    }
+}
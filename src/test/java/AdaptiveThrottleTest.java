@@ -0,0 +1,97 @@
+import dk.statsbiblioteket.reklamefixer.doms.AdaptiveThrottle;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class AdaptiveThrottleTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(10);
+
+    @Test
+    public void test_release_halvesLimitOnFailureAndRecoversAdditively() throws Exception {
+        AdaptiveThrottle throttle = new AdaptiveThrottle("test", 8, 0, 1000);
+
+
+
+        throttle.acquire();
+        throttle.release(FAST, true);
+        int limitAfterFailure = throttle.getLimit();
+        throttle.acquire();
+        throttle.release(FAST, true);
+        int limitAfterSecondFailure = throttle.getLimit();
+        for (int i = 0; i < 100; i++) {
+            throttle.acquire();
+            throttle.release(FAST, false);
+        }
+
+
+
+        assertEquals(limitAfterFailure, 4);
+        // Failures in quick succession only lower the limit once.
+        assertEquals(limitAfterSecondFailure, 4);
+        assertEquals(throttle.getLimit(), 8);
+    }
+
+    @Test
+    public void test_release_halvesLimitOnSlowCall() throws Exception {
+        AdaptiveThrottle throttle = new AdaptiveThrottle("test", 4, 0, 1000);
+
+
+
+        throttle.acquire();
+        throttle.release(SLOW, false);
+
+
+
+        assertEquals(throttle.getLimit(), 2);
+    }
+
+    @Test
+    public void test_acquire_waitsForLimit() throws Exception {
+        AdaptiveThrottle throttle = new AdaptiveThrottle("test", 1, 0, 1000);
+        throttle.acquire();
+        Thread waiter = new Thread(() -> {
+            try {
+                throttle.acquire();
+                throttle.release(FAST, false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+
+
+        waiter.start();
+        waiter.join(200);
+        boolean waitedForRelease = waiter.isAlive();
+        throttle.release(FAST, false);
+        waiter.join(5000);
+
+
+
+        assertTrue(waitedForRelease);
+        assertTrue(!waiter.isAlive());
+    }
+
+    @Test
+    public void test_acquire_limitsRate() throws Exception {
+        AdaptiveThrottle throttle = new AdaptiveThrottle("test", 1, 20, 1000);
+        long start = System.nanoTime();
+
+
+
+        for (int i = 0; i < 5; i++) {
+            throttle.acquire();
+            throttle.release(FAST, false);
+        }
+
+
+
+        // The first call is allowed at once, the next four are spaced 50 ms apart.
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(190));
+    }
+}
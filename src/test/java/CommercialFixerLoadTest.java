@@ -0,0 +1,298 @@
+import dk.statsbiblioteket.reklamefixer.CommercialFixer;
+import dk.statsbiblioteket.reklamefixer.TaskThreads;
+import dk.statsbiblioteket.reklamefixer.configuration.InitializationFailedException;
+import dk.statsbiblioteket.reklamefixer.configuration.PropertyBasedRegistrarConfiguration;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSClient;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataQuerier;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataUpdater;
+import dk.statsbiblioteket.reklamefixer.doms.ObjectStateResolver;
+import dk.statsbiblioteket.util.Strings;
+import org.custommonkey.xmlunit.DetailedDiff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Load test of the commercial fixer against a {@link LocalCentralWebservice}, reporting the throughput, the time
+ * spent in each web service operation and the peak heap usage of a run.
+ *
+ * The test runs a small load to check the harness. Larger loads are run from the main method, e.g.
+ * <pre>CommercialFixerLoadTest objects=20000 fetchThreads=8 updateBatchSize=50 latency=20 errorRate=0.01</pre>
+ * or, comparing object tasks on platform and virtual threads (the latter built with the loom profile),
+ * <pre>CommercialFixerLoadTest objects=20000 objectTaskThreads=virtual maxConcurrentObjects=1000 portPoolSize=1000
+ * latency=20</pre>
+ */
+public class CommercialFixerLoadTest {
+
+    private LocalCentralWebservice centralWebservice;
+    private PrintStream originalStdout;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        centralWebservice = new LocalCentralWebservice();
+        originalStdout = System.out;
+        System.setOut(mock(PrintStream.class));
+
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLUnit.setIgnoreComments(true);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        System.setOut(originalStdout);
+        centralWebservice.stop();
+    }
+
+    @Test
+    public void test_fixAllCommercials_againstLocalCentralWebservice() throws Exception {
+        Properties properties = defaultProperties(centralWebservice.start());
+        properties.setProperty("doms-reklamefixer.fetchThreads", "4");
+        properties.setProperty("doms-reklamefixer.updateBatchSize", "5");
+        List<String> cinemaIds = centralWebservice.createObjects(20, read("/cinema-metadata-example.xml"), "A");
+        List<String> tv2Ids = centralWebservice.createObjects(20, read("/tv2-metadata-example.xml"), "A");
+        List<String> deletedIds = centralWebservice.createObjects(5, read("/cinema-metadata-example.xml"), "D");
+        List<String> ids = new ArrayList<>();
+        ids.addAll(cinemaIds);
+        ids.addAll(tv2Ids);
+        ids.addAll(deletedIds);
+        Collections.shuffle(ids);
+
+
+
+        LoadReport report = run(centralWebservice, properties, ids);
+
+
+
+        assertEquals(report.objects, 45);
+        // Active objects are fixed and published, objects with other states are left alone.
+        for (String id : cinemaIds) {
+            assertIdentical(read("/updated-cinema-metadata-example.xml"), centralWebservice.getContents(id));
+            assertEquals(centralWebservice.getState(id), "A");
+        }
+        for (String id : tv2Ids) {
+            assertIdentical(read("/updated-tv2-metadata-example.xml"), centralWebservice.getContents(id));
+            assertEquals(centralWebservice.getState(id), "A");
+        }
+        for (String id : deletedIds) {
+            assertEquals(centralWebservice.getContents(id), read("/cinema-metadata-example.xml"));
+            assertEquals(centralWebservice.getState(id), "D");
+        }
+        assertTrue(report.operationTimes.get("getDatastreamContents").size() >= 45);
+    }
+
+    @DataProvider
+    public Object[][] taskThreads() {
+        return new Object[][]{{TaskThreads.PLATFORM}, {TaskThreads.VIRTUAL}};
+    }
+
+    @Test(dataProvider = "taskThreads")
+    public void test_fixAllCommercials_inObjectTasks(TaskThreads taskThreads) throws Exception {
+        Properties properties = defaultProperties(centralWebservice.start());
+        properties.setProperty("doms-reklamefixer.objectTaskThreads", taskThreads.name().toLowerCase(Locale.ROOT));
+        properties.setProperty("doms-reklamefixer.maxConcurrentObjects", "8");
+        properties.setProperty("doms-reklamefixer.portPoolSize", "8");
+        List<String> cinemaIds = centralWebservice.createObjects(20, read("/cinema-metadata-example.xml"), "A");
+        List<String> tv2Ids = centralWebservice.createObjects(20, read("/tv2-metadata-example.xml"), "A");
+        List<String> deletedIds = centralWebservice.createObjects(5, read("/cinema-metadata-example.xml"), "D");
+        List<String> ids = new ArrayList<>();
+        ids.addAll(cinemaIds);
+        ids.addAll(tv2Ids);
+        ids.addAll(deletedIds);
+        Collections.shuffle(ids);
+        centralWebservice.setLatency("getDatastreamContents", 5);
+
+
+
+        LoadReport report;
+        try {
+            report = run(centralWebservice, properties, ids);
+        } catch (InitializationFailedException e) {
+            throw new SkipException("No " + taskThreads + " threads in this build: " + e.getMessage());
+        }
+
+
+
+        assertEquals(report.objects, 45);
+        for (String id : cinemaIds) {
+            assertIdentical(read("/updated-cinema-metadata-example.xml"), centralWebservice.getContents(id));
+            assertEquals(centralWebservice.getState(id), "A");
+        }
+        for (String id : tv2Ids) {
+            assertIdentical(read("/updated-tv2-metadata-example.xml"), centralWebservice.getContents(id));
+            assertEquals(centralWebservice.getState(id), "A");
+        }
+        for (String id : deletedIds) {
+            assertEquals(centralWebservice.getContents(id), read("/cinema-metadata-example.xml"));
+            assertEquals(centralWebservice.getState(id), "D");
+        }
+        // Each object is retrieved and updated on its own.
+        assertEquals(report.operationTimes.get("getDatastreamContents").size(), 45);
+        assertEquals(report.operationTimes.get("modifyDatastream").size(), 40);
+    }
+
+    /**
+     * Runs a load given as key=value arguments: objects, fetchThreads, maxInFlightFetches, portPoolSize,
+     * updateBatchSize, pipelineWindowSize, metadataEngine, objectTaskThreads, maxConcurrentObjects, inactiveFraction,
+     * and latency and errorRate for all operations or as latency.operation and errorRate.operation for a single
+     * operation.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> arguments = new HashMap<>();
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            arguments.put(keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
+        }
+        LocalCentralWebservice centralWebservice = new LocalCentralWebservice();
+        try {
+            Properties properties = defaultProperties(centralWebservice.start());
+            for (String key : new String[]{"fetchThreads", "maxInFlightFetches", "portPoolSize", "updateBatchSize",
+                    "pipelineWindowSize", "metadataEngine", "objectTaskThreads", "maxConcurrentObjects"}) {
+                if (arguments.containsKey(key)) {
+                    properties.setProperty("doms-reklamefixer." + key, arguments.get(key));
+                }
+            }
+            for (String operation : LocalCentralWebservice.getSimulatedOperations()) {
+                String latency = arguments.getOrDefault("latency." + operation, arguments.get("latency"));
+                if (latency != null) {
+                    centralWebservice.setLatency(operation, Long.parseLong(latency));
+                }
+                String errorRate = arguments.getOrDefault("errorRate." + operation, arguments.get("errorRate"));
+                if (errorRate != null) {
+                    centralWebservice.setErrorRate(operation, Double.parseDouble(errorRate));
+                }
+            }
+            int objects = Integer.parseInt(arguments.getOrDefault("objects", "1000"));
+            int inactive = (int) (objects * Double.parseDouble(arguments.getOrDefault("inactiveFraction", "0")));
+            int cinema = (objects - inactive) / 2;
+            List<String> ids = new ArrayList<>();
+            ids.addAll(centralWebservice.createObjects(cinema, read("/cinema-metadata-example.xml"), "A"));
+            ids.addAll(centralWebservice.createObjects(objects - inactive - cinema,
+                    read("/tv2-metadata-example.xml"), "A"));
+            ids.addAll(centralWebservice.createObjects(inactive, read("/cinema-metadata-example.xml"), "D"));
+            Collections.shuffle(ids);
+
+            PrintStream stdout = System.out;
+            System.setOut(new PrintStream(new ByteArrayOutputStream()));
+            LoadReport report;
+            try {
+                report = run(centralWebservice, properties, ids);
+            } finally {
+                System.setOut(stdout);
+            }
+            report.print(stdout);
+        } finally {
+            centralWebservice.stop();
+        }
+    }
+
+    private static LoadReport run(LocalCentralWebservice centralWebservice, Properties properties,
+                                  List<String> ids) throws IOException {
+        ByteArrayOutputStream propertiesBytes = new ByteArrayOutputStream();
+        properties.store(propertiesBytes, null);
+        PropertyBasedRegistrarConfiguration configuration = new PropertyBasedRegistrarConfiguration(
+                new ByteArrayInputStream(propertiesBytes.toByteArray()));
+        DOMSClient domsClient = new DOMSClient(configuration);
+        // Created before measuring, so reading the WSDL is not part of the run.
+        domsClient.getCentralWebservice();
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        try (DOMSCommercialMetadataQuerier querier = new DOMSCommercialMetadataQuerier(domsClient,
+                configuration.getFetchThreads(), configuration.getMaxInFlightFetches(),
+                configuration.getMetadataEngine())) {
+            DOMSCommercialMetadataUpdater updater = new DOMSCommercialMetadataUpdater(domsClient,
+                    new ObjectStateResolver(domsClient, configuration.getStateCollectionPid(),
+                            configuration.getStateViewAngle()),
+                    configuration.getUpdateBatchSize());
+            CommercialFixer commercialFixer = new CommercialFixer(querier, updater, ids,
+                    configuration.getPipelineWindowSize());
+            commercialFixer.setObjectTasks(configuration.getObjectTaskThreads(),
+                    configuration.getMaxConcurrentObjects());
+            commercialFixer.fixAllCommercials();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        return new LoadReport(ids.size(), elapsed, peakHeap, centralWebservice.getOperationTimes());
+    }
+
+    private static Properties defaultProperties(String wsdl) throws IOException {
+        Properties properties = new Properties();
+        properties.load(CommercialFixerLoadTest.class.getResourceAsStream("/doms-reklamefixer-test.properties"));
+        properties.setProperty("doms-reklamefixer.domsWSAPIEndpoint", wsdl);
+        properties.setProperty("doms-reklamefixer.domsWSAPIEndpointTimeoutInMillis", "60000");
+        return properties;
+    }
+
+    private static String read(String resource) throws IOException {
+        return Strings.flush(CommercialFixerLoadTest.class.getResourceAsStream(resource));
+    }
+
+    private void assertIdentical(String expected, String actual) throws Exception {
+        DetailedDiff diff = new DetailedDiff(XMLUnit.compareXML(expected, actual));
+        assertTrue(diff.identical(), diff.getAllDifferences().toString());
+    }
+
+    /**
+     * Throughput, time spent in each web service operation and peak heap usage of a run.
+     */
+    private static class LoadReport {
+        private final int objects;
+        private final long elapsedNanos;
+        private final long peakHeapBytes;
+        private final Map<String, List<Long>> operationTimes;
+
+        private LoadReport(int objects, long elapsedNanos, long peakHeapBytes,
+                           Map<String, List<Long>> operationTimes) {
+            this.objects = objects;
+            this.elapsedNanos = elapsedNanos;
+            this.peakHeapBytes = peakHeapBytes;
+            this.operationTimes = operationTimes;
+        }
+
+        private void print(PrintStream out) {
+            out.printf("%d objects in %.1f s, %.1f objects/s, peak heap %d MB%n", objects, elapsedNanos / 1e9,
+                    objects / (elapsedNanos / 1e9), peakHeapBytes / (1024 * 1024));
+            out.printf("%-24s %8s %10s %10s%n", "operation", "calls", "p50 ms", "p99 ms");
+            operationTimes.forEach((operation, times) -> {
+                Collections.sort(times);
+                out.printf("%-24s %8d %10.1f %10.1f%n", operation, times.size(),
+                        percentile(times, 0.50) / 1e6, percentile(times, 0.99) / 1e6);
+            });
+        }
+
+        private static long percentile(List<Long> sortedTimes, double fraction) {
+            int index = (int) Math.ceil(fraction * sortedTimes.size()) - 1;
+            return sortedTimes.get(Math.max(0, index));
+        }
+    }
+}
@@ -1,24 +1,36 @@
 import dk.statsbiblioteket.reklamefixer.CommercialFixer;
 import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.DryRunReport;
+import dk.statsbiblioteket.reklamefixer.Outcome;
 import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataQuerier;
 import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataUpdater;
+import dk.statsbiblioteket.reklamefixer.journal.DeadLetterFile;
+import dk.statsbiblioteket.reklamefixer.journal.MetadataDiffFile;
 import dk.statsbiblioteket.util.Strings;
 import org.custommonkey.xmlunit.DetailedDiff;
 import org.custommonkey.xmlunit.XMLUnit;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 public class CommercialFixerUnitTest {
@@ -139,4 +151,93 @@ public class CommercialFixerUnitTest {
         verifyNoMoreInteractions(domsUpdaterMock);
     }
 
+    @Test
+    public void test_fixAllCommercials_reportsObjectFailingToFixAndContinues() throws Exception {
+        CommercialMetadata failingMetadata = mock(CommercialMetadata.class);
+        when(failingMetadata.getUuid()).thenReturn(uuid1);
+        when(failingMetadata.getAssetType()).thenThrow(new IllegalStateException("Broken metadata"));
+        String metadataString = Strings.flush(getClass().getResourceAsStream("/cinema-metadata-example.xml"));
+        CommercialMetadata metadata2 = new CommercialMetadata(uuid2, metadataString);
+        when(domsQuerierMock.retrieveMetadata(any())).thenReturn(Arrays.asList(failingMetadata, metadata2));
+        File deadLetterPath = File.createTempFile("dead-letters", ".txt");
+        DeadLetterFile deadLetterFile = new DeadLetterFile(deadLetterPath);
+        commercialFixer.setDeadLetterFile(deadLetterFile);
+        Map<String, Outcome> outcomes = new HashMap<>();
+        commercialFixer.setOutcomeListener(outcomes::put);
+
+
+
+        commercialFixer.fixAllCommercials();
+        deadLetterFile.close();
+
+
+
+        verify(domsUpdaterMock).updateMetadata(Arrays.asList(metadata2));
+        assertEquals(outcomes.get(uuid1), Outcome.FAILED);
+        List<String> deadLetters = Files.readAllLines(deadLetterPath.toPath(), StandardCharsets.UTF_8);
+        deadLetterPath.delete();
+        assertEquals(deadLetters, Arrays.asList(uuid1 + "\tfix\tIllegalStateException: Broken metadata"));
+    }
+
+    @Test
+    public void test_fixAllCommercials_inWindows() throws Exception {
+        commercialFixer = new CommercialFixer(domsQuerierMock, domsUpdaterMock, commercialUuids, 1);
+
+        String metadataString = Strings.flush(getClass().getResourceAsStream("/cinema-metadata-example.xml"));
+        CommercialMetadata metadata1 = new CommercialMetadata(uuid1, metadataString);
+        CommercialMetadata metadata2 = new CommercialMetadata(uuid2, metadataString);
+
+        when(domsQuerierMock.retrieveMetadata(Arrays.asList(uuid1))).thenReturn(Arrays.asList(metadata1));
+        when(domsQuerierMock.retrieveMetadata(Arrays.asList(uuid2))).thenReturn(Arrays.asList(metadata2));
+
+
+
+        commercialFixer.fixAllCommercials();
+
+
+
+        // Each window is retrieved and updated before the next window is retrieved.
+        InOrder inOrder = inOrder(domsQuerierMock, domsUpdaterMock);
+        inOrder.verify(domsQuerierMock).retrieveMetadata(Arrays.asList(uuid1));
+        inOrder.verify(domsUpdaterMock).updateMetadata(Arrays.asList(metadata1));
+        inOrder.verify(domsQuerierMock).retrieveMetadata(Arrays.asList(uuid2));
+        inOrder.verify(domsUpdaterMock).updateMetadata(Arrays.asList(metadata2));
+        inOrder.verifyNoMoreInteractions();
+    }
+
+    @Test
+    public void test_fixAllCommercials_dryRunReportsChangesWithoutUpdating() throws Exception {
+        String tv2MetadataString = Strings.flush(getClass().getResourceAsStream("/tv2-metadata-example.xml"));
+        CommercialMetadata tv2Metadata = new CommercialMetadata(uuid1, tv2MetadataString);
+        InputStream cinemaMetadataStream = getClass().getResourceAsStream("/updated-cinema-metadata-example.xml");
+        CommercialMetadata cinemaMetadata = new CommercialMetadata(uuid2, cinemaMetadataStream);
+        when(domsQuerierMock.retrieveMetadata(any())).thenReturn(Arrays.asList(tv2Metadata, cinemaMetadata));
+        DryRunReport dryRunReport = new DryRunReport();
+        File diffPath = File.createTempFile("metadata-diff", ".xml");
+        MetadataDiffFile diffFile = new MetadataDiffFile(diffPath);
+        commercialFixer.setDryRun(dryRunReport, diffFile);
+
+
+
+        commercialFixer.fixAllCommercials();
+        diffFile.close();
+
+
+
+        // DOMS should not be updated in a dry run.
+        verifyNoMoreInteractions(domsUpdaterMock);
+        assertEquals(dryRunReport.getObjects("Tv2reklamefilm"), 1);
+        assertEquals(dryRunReport.getChanged("Tv2reklamefilm"), 1);
+        assertEquals(dryRunReport.getObjects("Biografreklamefilm"), 1);
+        assertEquals(dryRunReport.getChanged("Biografreklamefilm"), 0);
+        assertEquals(dryRunReport.getWithoutInstantiation("Tv2reklamefilm"), 0);
+
+        String diff = new String(Files.readAllBytes(diffPath.toPath()), StandardCharsets.UTF_8);
+        diffPath.delete();
+        XMLUnit.buildControlDocument(diff);
+        assertTrue(diff.contains("<object uuid=\"uuid:1\" assetType=\"Tv2reklamefilm\">"), diff);
+        assertTrue(diff.contains("tv2d"), diff);
+        assertFalse(diff.contains("uuid:2"), diff);
+    }
+
 }
@@ -0,0 +1,313 @@
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidCredentialsException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidResourceException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.MethodFailedException;
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.configuration.PropertyBasedRegistrarConfiguration;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSClient;
+import dk.statsbiblioteket.reklamefixer.doms.RetryPolicy;
+import dk.statsbiblioteket.reklamefixer.doms.StreamingDatastreamClient;
+import com.sun.net.httpserver.HttpServer;
+import dk.statsbiblioteket.util.Strings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.ws.WebServiceException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class DOMSClientTest {
+
+    private LocalCentralWebservice centralWebservice;
+    private Properties properties;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        centralWebservice = new LocalCentralWebservice();
+        properties = new Properties();
+        properties.load(getClass().getResourceAsStream("/doms-reklamefixer-test.properties"));
+        properties.setProperty("doms-reklamefixer.domsWSAPIEndpoint", centralWebservice.start());
+        properties.setProperty("doms-reklamefixer.retryInitialBackoffInMillis", "1");
+        properties.setProperty("doms-reklamefixer.retryMaxBackoffInMillis", "5");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        centralWebservice.stop();
+    }
+
+    @Test
+    public void test_getDatastreamContents_retriesMethodFailures() throws Exception {
+        properties.setProperty("doms-reklamefixer.retryMaxAttempts", "10");
+        List<String> ids = centralWebservice.createObjects(20, "<metadata/>", "A");
+        centralWebservice.setErrorRate("getDatastreamContents", 0.3);
+        DOMSClient domsClient = createClient();
+
+
+
+        for (String id : ids) {
+            assertEquals(domsClient.getDatastreamContents(id), "<metadata/>");
+        }
+
+
+
+        assertTrue(centralWebservice.getOperationTimes().get("getDatastreamContents").size() > ids.size());
+    }
+
+    @Test
+    public void test_getDatastreamContents_givesUpAfterMaxAttempts() throws Exception {
+        properties.setProperty("doms-reklamefixer.retryMaxAttempts", "3");
+        String id = centralWebservice.createObjects(1, "<metadata/>", "A").get(0);
+        centralWebservice.setErrorRate("getDatastreamContents", 1.0);
+        DOMSClient domsClient = createClient();
+
+
+
+        try {
+            domsClient.getDatastreamContents(id);
+            fail("Expected the call to fail");
+        } catch (MethodFailedException e) {
+            // Expected
+        }
+
+
+
+        assertEquals(centralWebservice.getOperationTimes().get("getDatastreamContents").size(), 3);
+    }
+
+    @Test
+    public void test_getDatastreamContents_doesNotRetryInvalidResource() throws Exception {
+        properties.setProperty("doms-reklamefixer.retryMaxAttempts", "3");
+        DOMSClient domsClient = createClient();
+
+
+
+        try {
+            domsClient.getDatastreamContents("uuid:unknown");
+            fail("Expected the call to fail");
+        } catch (InvalidResourceException e) {
+            // Expected
+        }
+
+
+
+        assertEquals(centralWebservice.getOperationTimes().get("getDatastreamContents").size(), 1);
+    }
+
+    @Test
+    public void test_readDatastreamContents_parsesContentsAsRead() throws Exception {
+        properties.setProperty("doms-reklamefixer.retryMaxAttempts", "10");
+        String cinemaMetadata = Strings.flush(getClass().getResourceAsStream("/cinema-metadata-example.xml"));
+        List<String> ids = centralWebservice.createObjects(20, cinemaMetadata, "A");
+        centralWebservice.setErrorRate("getDatastreamContents", 0.3);
+        DOMSClient domsClient = createClient();
+
+
+
+        List<CommercialMetadata> result = new ArrayList<>();
+        for (String id : ids) {
+            result.add(domsClient.readDatastreamContents(id, contents -> new CommercialMetadata(id, contents)));
+        }
+
+
+
+        String expectedMetadata = new CommercialMetadata("uuid:expected", cinemaMetadata).getMetadata();
+        for (CommercialMetadata metadata : result) {
+            assertEquals(metadata.getMetadata(), expectedMetadata);
+        }
+        // Faults of the streamed calls are retried like those of the other calls.
+        assertTrue(centralWebservice.getOperationTimes().get("getDatastreamContents").size() > ids.size());
+    }
+
+    @Test
+    public void test_readDatastreamContents_throwsDeclaredFaults() throws Exception {
+        properties.setProperty("doms-reklamefixer.retryMaxAttempts", "3");
+        DOMSClient domsClient = createClient();
+
+
+
+        try {
+            domsClient.readDatastreamContents("uuid:unknown", contents -> contents.read());
+            fail("Expected the call to fail");
+        } catch (InvalidResourceException e) {
+            assertEquals(e.getMessage(), "Unknown object uuid:unknown");
+        }
+
+
+
+        assertEquals(centralWebservice.getOperationTimes().get("getDatastreamContents").size(), 1);
+    }
+
+    @Test
+    public void test_readDatastreamContents_leavesThrottleAfterMalformedContents() throws Exception {
+        properties.setProperty("doms-reklamefixer.retryMaxAttempts", "3");
+        String malformed = centralWebservice.createObjects(1, "<metadata>", "A").get(0);
+        DOMSClient domsClient = createClient();
+        int limit = domsClient.getReadLimit();
+
+
+
+        try {
+            domsClient.readDatastreamContents(malformed, contents -> new CommercialMetadata(malformed, contents));
+            fail("Expected the contents to be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+
+
+        // The parser failed, not DOMS, so the call is neither retried nor slows down the following calls.
+        assertEquals(centralWebservice.getOperationTimes().get("getDatastreamContents").size(), 1);
+        assertEquals(domsClient.getReadLimit(), limit);
+    }
+
+    @DataProvider
+    public Object[][] streamDatastreamWrites() {
+        return new Object[][]{{true}, {false}};
+    }
+
+    @Test(dataProvider = "streamDatastreamWrites")
+    public void test_modifyDatastream_sendsMetadataSerialisedOnce(boolean streamDatastreamWrites) throws Exception {
+        properties.setProperty("doms-reklamefixer.streamDatastreamWrites", String.valueOf(streamDatastreamWrites));
+        properties.setProperty("doms-reklamefixer.retryMaxAttempts", "10");
+        String contents = "<metadata title=\"Æbler &amp; pærer\">&lt;Rødt&gt; &amp; grønt&#13;\n€</metadata>";
+        List<String> ids = centralWebservice.createObjects(20, "<metadata/>", "I");
+        centralWebservice.setErrorRate("modifyDatastream", 0.3);
+        DOMSClient domsClient = createClient();
+
+
+
+        List<CountingMetadata> modified = new ArrayList<>();
+        for (String id : ids) {
+            CountingMetadata metadata = new CountingMetadata(id, contents);
+            domsClient.modifyDatastream(id, metadata);
+            modified.add(metadata);
+        }
+
+
+
+        // Calls were retried, and each metadata was serialised once, with every attempt sending the same contents.
+        assertTrue(centralWebservice.getOperationTimes().get("modifyDatastream").size() > ids.size());
+        for (CountingMetadata metadata : modified) {
+            assertEquals(metadata.serialisations, 1);
+            for (String request : centralWebservice.getModifyRequests(metadata.getUuid())) {
+                assertEquals(request, metadata.getMetadata());
+            }
+            assertEquals(centralWebservice.getContents(metadata.getUuid()), metadata.getMetadata());
+        }
+    }
+
+    @Test
+    public void test_modifyDatastream_streamedWriteThrowsDomsFault() throws Exception {
+        String contents = "<metadata title=\"Æbler & pærer\">&lt;Rødt&gt; & <grønt/> €</metadata>";
+        byte[] fault = Strings.flush(getClass().getResourceAsStream("/doms-modifydatastream-fault.xml"))
+                .getBytes(StandardCharsets.UTF_8);
+        AtomicReference<byte[]> request = new AtomicReference<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+            try (InputStream input = exchange.getRequestBody()) {
+                byte[] buffer = new byte[4096];
+                for (int read; (read = input.read(buffer)) != -1; ) {
+                    requestBytes.write(buffer, 0, read);
+                }
+            }
+            request.set(requestBytes.toByteArray());
+            exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+            exchange.sendResponseHeaders(500, fault.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(fault);
+            }
+        });
+        server.start();
+        String address = "http://localhost:" + server.getAddress().getPort() + "/centralWebservice";
+        StreamingDatastreamClient client = new StreamingDatastreamClient("fedoraAdmin", "fedoraAdminPass", 5000);
+
+
+
+        MethodFailedException failure = null;
+        try {
+            client.modify(address, "uuid:faulty", "PBCORE", contents.getBytes(StandardCharsets.UTF_8), "Æ & <");
+        } catch (MethodFailedException e) {
+            failure = e;
+        } finally {
+            server.stop(0);
+        }
+
+
+
+        String expectedMessage = "Method failed to execute: Failed to modify datastream 'PBCORE' of object: "
+                + "<pbcoreDescriptionDocument> is not valid & was not stored (ÆØÅ)";
+        assertNotNull(failure, "Expected the call to fail");
+        assertEquals(failure.getMessage(), expectedMessage);
+        assertEquals(failure.getFaultInfo(), expectedMessage);
+        // The contents and the comment arrive as they were, with markup escaped and other characters in UTF-8.
+        Document requestDocument = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(request.get()));
+        assertEquals(requestDocument.getElementsByTagName("contents").item(0).getTextContent(), contents);
+        assertEquals(requestDocument.getElementsByTagName("comment").item(0).getTextContent(), "Æ & <");
+        String requestText = new String(request.get(), StandardCharsets.UTF_8);
+        assertTrue(requestText.contains("<contents>&lt;metadata title=\"Æbler &amp; pærer\"&gt;&amp;lt;Rødt&amp;gt; "
+                + "&amp; &lt;grønt/&gt; €&lt;/metadata&gt;</contents>"), requestText);
+    }
+
+    @Test
+    public void test_retryPolicy_classifiesFailures() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 100, 1000);
+
+
+
+        // Failures of DOMS or the connection are retried, failures of the request are not.
+        assertTrue(retryPolicy.shouldRetry(1, new MethodFailedException("", "")));
+        assertTrue(retryPolicy.shouldRetry(2, new WebServiceException(new SocketTimeoutException())));
+        assertFalse(retryPolicy.shouldRetry(3, new MethodFailedException("", "")));
+        assertFalse(retryPolicy.shouldRetry(1, new InvalidResourceException("", "")));
+        assertFalse(retryPolicy.shouldRetry(1, new InvalidCredentialsException("", "")));
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long backoff = retryPolicy.getBackoffMillis(attempt);
+            assertTrue(backoff >= 0 && backoff <= Math.min(1000, 100L << (attempt - 1)), "Backoff " + backoff);
+        }
+    }
+
+    /**
+     * Metadata counting the times it is serialised.
+     */
+    private static class CountingMetadata extends CommercialMetadata {
+        private int serialisations = 0;
+
+        private CountingMetadata(String uuid, String metadata) {
+            super(uuid, metadata);
+        }
+
+        @Override
+        protected byte[] serialise() {
+            serialisations++;
+            return super.serialise();
+        }
+    }
+
+    private DOMSClient createClient() throws Exception {
+        ByteArrayOutputStream propertiesBytes = new ByteArrayOutputStream();
+        properties.store(propertiesBytes, null);
+        return new DOMSClient(new PropertyBasedRegistrarConfiguration(
+                new ByteArrayInputStream(propertiesBytes.toByteArray())));
+    }
+}
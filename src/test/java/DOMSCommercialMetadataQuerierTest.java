@@ -0,0 +1,173 @@
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSClient;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataQuerier;
+import dk.statsbiblioteket.reklamefixer.journal.ContentDigests;
+import dk.statsbiblioteket.reklamefixer.journal.DeadLetterFile;
+import dk.statsbiblioteket.reklamefixer.rules.FixAction;
+import dk.statsbiblioteket.reklamefixer.rules.FixRule;
+import dk.statsbiblioteket.reklamefixer.rules.FixRules;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.MethodFailedException;
+import dk.statsbiblioteket.util.Strings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class DOMSCommercialMetadataQuerierTest {
+
+    private static final int NUMBER_OF_OBJECTS = 50;
+    private DOMSClient domsClientMock;
+    private List<String> ids;
+    private PrintStream originalStdout;
+    private PrintStream stdoutMock;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        stdoutMock = mock(PrintStream.class);
+        originalStdout = System.out;
+        System.setOut(stdoutMock);
+
+        String metadata = Strings.flush(getClass().getResourceAsStream("/cinema-metadata-example.xml"));
+        domsClientMock = mock(DOMSClient.class);
+        ids = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_OBJECTS; i++) {
+            String id = "uuid:" + i;
+            ids.add(id);
+            if (i % 10 == 0) {
+                when(domsClientMock.getDatastreamContents(id)).thenThrow(new MethodFailedException("", ""));
+            } else {
+                when(domsClientMock.getDatastreamContents(id)).thenReturn(metadata);
+            }
+        }
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        System.setOut(originalStdout);
+    }
+
+    @Test
+    public void test_retrieveMetadata_concurrently() {
+        try (DOMSCommercialMetadataQuerier querier = new DOMSCommercialMetadataQuerier(domsClientMock, 4, 8)) {
+
+
+
+            List<CommercialMetadata> result = querier.retrieveMetadata(ids);
+
+
+
+            // Results keep the order of the given ids and leave out failed objects.
+            List<String> expectedIds = new ArrayList<>();
+            for (int i = 0; i < NUMBER_OF_OBJECTS; i++) {
+                if (i % 10 == 0) {
+                    verify(stdoutMock).println(ids.get(i) + "\tFailed to retrieve object.");
+                } else {
+                    expectedIds.add(ids.get(i));
+                }
+            }
+            List<String> resultIds = new ArrayList<>();
+            result.forEach(metadata -> resultIds.add(metadata.getUuid()));
+            assertEquals(resultIds, expectedIds);
+        }
+    }
+
+    @Test
+    public void test_retrieveMetadata_writesFailuresToDeadLetterFile() throws Exception {
+        File deadLetterPath = File.createTempFile("doms-reklamefixer-dead-letters", ".txt");
+        try {
+            DOMSCommercialMetadataQuerier querier = new DOMSCommercialMetadataQuerier(domsClientMock);
+            try (DeadLetterFile deadLetterFile = new DeadLetterFile(deadLetterPath)) {
+                querier.setDeadLetterFile(deadLetterFile);
+
+
+
+                querier.retrieveMetadata(ids.subList(0, 11));
+            }
+
+
+
+            // Each failed object is written on a line of its own, starting with its id.
+            List<String> lines = Files.readAllLines(deadLetterPath.toPath(), StandardCharsets.UTF_8);
+            assertEquals(lines.size(), 2);
+            assertTrue(lines.get(0).startsWith(ids.get(0) + "\tretrieve\tMethodFailedException"), lines.get(0));
+            assertTrue(lines.get(1).startsWith(ids.get(10) + "\tretrieve\t"), lines.get(1));
+        } finally {
+            deadLetterPath.delete();
+        }
+    }
+
+    @Test
+    public void test_retrieveMetadata_skipsContentsKnownToBeFixed() throws Exception {
+        File digestFile = File.createTempFile("doms-reklamefixer-digests", ".txt");
+        try (ContentDigests contentDigests = new ContentDigests(digestFile, FixRules.DEFAULT)) {
+            String metadata = domsClientMock.getDatastreamContents(ids.get(1));
+            contentDigests.recordFixed(ids.get(1), ContentDigests.digest(metadata));
+            contentDigests.recordFixed(ids.get(2), ContentDigests.digest("<other/>"));
+            DOMSCommercialMetadataQuerier querier = new DOMSCommercialMetadataQuerier(domsClientMock);
+            querier.setContentDigests(contentDigests);
+
+
+
+            List<CommercialMetadata> result = querier.retrieveMetadata(ids.subList(1, 3));
+
+
+
+            // Only the object whose contents differ from the fixed contents is parsed.
+            assertEquals(result.size(), 1);
+            assertEquals(result.get(0).getUuid(), ids.get(2));
+            assertEquals(result.get(0).getSourceDigest(), ContentDigests.digest(metadata));
+        } finally {
+            digestFile.delete();
+        }
+    }
+
+    @Test
+    public void test_retrieveMetadata_parsesContentsFixedWithOtherRules() throws Exception {
+        File digestFile = File.createTempFile("doms-reklamefixer-digests", ".txt");
+        FixRules cinemaRules = new FixRules(Collections.singletonList(
+                new FixRule("cinema", "Biografreklamefilm", FixAction.MOVE_ALTERNATIVE_TITLE)));
+        try {
+            try (ContentDigests contentDigests = new ContentDigests(digestFile, cinemaRules)) {
+                contentDigests.recordFixed(ids.get(1), ContentDigests.digest(domsClientMock.getDatastreamContents(
+                        ids.get(1))));
+            }
+            DOMSCommercialMetadataQuerier querier = new DOMSCommercialMetadataQuerier(domsClientMock);
+
+
+
+            List<CommercialMetadata> withOtherRules;
+            List<CommercialMetadata> withSameRules;
+            try (ContentDigests contentDigests = new ContentDigests(digestFile, FixRules.DEFAULT)) {
+                querier.setContentDigests(contentDigests);
+                withOtherRules = querier.retrieveMetadata(ids.subList(1, 2));
+            }
+            try (ContentDigests contentDigests = new ContentDigests(digestFile, cinemaRules)) {
+                querier.setContentDigests(contentDigests);
+                withSameRules = querier.retrieveMetadata(ids.subList(1, 2));
+            }
+
+
+
+            // The digest was recorded with other rules, so it is discarded and the object is fixed again.
+            assertEquals(withOtherRules.size(), 1);
+            assertEquals(withOtherRules.get(0).getUuid(), ids.get(1));
+            // The file was started over, so the digest is not found with the original rules either.
+            assertEquals(withSameRules.size(), 1);
+        } finally {
+            digestFile.delete();
+        }
+    }
+}
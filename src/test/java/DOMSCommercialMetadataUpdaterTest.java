@@ -0,0 +1,125 @@
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSClient;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataUpdater;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.MethodFailedException;
+import dk.statsbiblioteket.util.Strings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DOMSCommercialMetadataUpdaterTest {
+
+    private DOMSClient domsClientMock;
+    private List<CommercialMetadata> metadataList;
+    private PrintStream originalStdout;
+    private PrintStream stdoutMock;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        stdoutMock = mock(PrintStream.class);
+        originalStdout = System.out;
+        System.setOut(stdoutMock);
+
+        String metadata = Strings.flush(getClass().getResourceAsStream("/cinema-metadata-example.xml"));
+        metadataList = Arrays.asList(
+                new CommercialMetadata("uuid:1", metadata),
+                new CommercialMetadata("uuid:2", metadata),
+                new CommercialMetadata("uuid:3", metadata));
+
+        domsClientMock = mock(DOMSClient.class);
+        when(domsClientMock.getState(anyString())).thenReturn("A");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        System.setOut(originalStdout);
+    }
+
+    @Test
+    public void test_updateMetadata_inBatches() throws Exception {
+        DOMSCommercialMetadataUpdater updater = new DOMSCommercialMetadataUpdater(domsClientMock, 2);
+
+
+
+        updater.updateMetadata(metadataList);
+
+
+
+        verify(domsClientMock).markInProgressObjects(Arrays.asList("uuid:1", "uuid:2"));
+        verify(domsClientMock).markPublishedObjects(Arrays.asList("uuid:1", "uuid:2"));
+        verify(domsClientMock).markInProgressObjects(Arrays.asList("uuid:3"));
+        verify(domsClientMock).markPublishedObjects(Arrays.asList("uuid:3"));
+        for (CommercialMetadata metadata : metadataList) {
+            verify(domsClientMock).modifyDatastream(metadata.getUuid(), metadata);
+        }
+        verify(domsClientMock, never()).markInProgressObject(anyString());
+    }
+
+    @Test
+    public void test_updateMetadata_inBatches_whenOneObjectCannotBeModified() throws Exception {
+        doThrow(new MethodFailedException("", ""))
+                .when(domsClientMock).modifyDatastream(eq("uuid:2"), eq(metadataList.get(1)));
+        DOMSCommercialMetadataUpdater updater = new DOMSCommercialMetadataUpdater(domsClientMock, 3);
+
+
+
+        updater.updateMetadata(metadataList);
+
+
+
+        verify(stdoutMock).println("uuid:2\tFailed to update object.");
+        verify(domsClientMock).markPublishedObjects(Arrays.asList("uuid:1", "uuid:3"));
+    }
+
+    @Test
+    public void test_updateMetadata_inBatches_whenBatchCannotBeMarkedInProgress() throws Exception {
+        doThrow(new MethodFailedException("", "")).when(domsClientMock).markInProgressObjects(anyListOf(String.class));
+        doThrow(new MethodFailedException("", "")).when(domsClientMock).markInProgressObject("uuid:1");
+        DOMSCommercialMetadataUpdater updater = new DOMSCommercialMetadataUpdater(domsClientMock, 3);
+
+
+
+        updater.updateMetadata(metadataList);
+
+
+
+        // The batch falls back to updating one object at a time.
+        verify(stdoutMock).println("uuid:1\tFailed to update object.");
+        verify(domsClientMock).markPublishedObject("uuid:2");
+        verify(domsClientMock).markPublishedObject("uuid:3");
+        verify(domsClientMock, never()).markPublishedObjects(anyListOf(String.class));
+    }
+
+    @Test
+    public void test_updateMetadata_whenObjectIsNotActive() throws Exception {
+        when(domsClientMock.getState("uuid:2")).thenReturn("D");
+        DOMSCommercialMetadataUpdater updater = new DOMSCommercialMetadataUpdater(domsClientMock, 3);
+
+
+
+        updater.updateMetadata(metadataList);
+
+
+
+        // The state is looked up once and the object is left out before anything is written.
+        verify(domsClientMock, times(1)).getState("uuid:2");
+        verify(stdoutMock).println("uuid:2\tObject has nonactive state: D");
+        verify(domsClientMock).markInProgressObjects(Arrays.asList("uuid:1", "uuid:3"));
+        verify(domsClientMock, never()).modifyDatastream(eq("uuid:2"), any(CommercialMetadata.class));
+    }
+}
@@ -0,0 +1,158 @@
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.configuration.PropertyBasedRegistrarConfiguration;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSClient;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataQuerier;
+import dk.statsbiblioteket.reklamefixer.doms.DatastreamCache;
+import dk.statsbiblioteket.util.Strings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class DatastreamCacheTest {
+
+    private static final String COLLECTION = "doms:Root_Collection";
+    private static final String VIEW_ANGLE = "SummaVisible";
+
+    private LocalCentralWebservice centralWebservice;
+    private DOMSClient domsClient;
+    private File cacheDirectory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        centralWebservice = new LocalCentralWebservice();
+        Properties properties = new Properties();
+        properties.load(getClass().getResourceAsStream("/doms-reklamefixer-test.properties"));
+        properties.setProperty("doms-reklamefixer.domsWSAPIEndpoint", centralWebservice.start());
+        ByteArrayOutputStream propertiesBytes = new ByteArrayOutputStream();
+        properties.store(propertiesBytes, null);
+        domsClient = new DOMSClient(new PropertyBasedRegistrarConfiguration(
+                new ByteArrayInputStream(propertiesBytes.toByteArray())));
+        cacheDirectory = Files.createTempDirectory("datastream-cache").toFile();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        centralWebservice.stop();
+        for (File file : cacheDirectory.listFiles()) {
+            file.delete();
+        }
+        cacheDirectory.delete();
+    }
+
+    @Test
+    public void test_retrieveMetadata_readsUnmodifiedObjectsFromCache() throws Exception {
+        String cinemaMetadata = Strings.flush(getClass().getResourceAsStream("/cinema-metadata-example.xml"));
+        String tv2Metadata = Strings.flush(getClass().getResourceAsStream("/tv2-metadata-example.xml"));
+        List<String> ids = centralWebservice.createObjects(10, cinemaMetadata, "A");
+        retrieveWithCache(ids);
+        String modifiedId = ids.get(3);
+        centralWebservice.markInProgressObject(Collections.singletonList(modifiedId), "");
+        centralWebservice.modifyDatastream(modifiedId, "PBCORE", tv2Metadata, "");
+        centralWebservice.markPublishedObject(Collections.singletonList(modifiedId), "");
+
+
+
+        List<CommercialMetadata> result = retrieveWithCache(ids);
+
+
+
+        // Only the modified object is retrieved again.
+        assertEquals(centralWebservice.getOperationTimes().get("getDatastreamContents").size(), ids.size() + 1);
+        List<String> assetTypes = new ArrayList<>();
+        for (CommercialMetadata metadata : result) {
+            assetTypes.add(metadata.getAssetType());
+        }
+        List<String> expectedAssetTypes = new ArrayList<>(Collections.nCopies(ids.size(), "Biografreklamefilm"));
+        expectedAssetTypes.set(3, "Tv2reklamefilm");
+        assertEquals(assetTypes, expectedAssetTypes);
+    }
+
+    @Test
+    public void test_open_dropsRecordCutOffByCrash() throws Exception {
+        List<String> ids = centralWebservice.createObjects(2, "<metadata/>", "A");
+        DatastreamCache cache = new DatastreamCache(cacheDirectory, domsClient, COLLECTION, VIEW_ANGLE);
+        cache.put(ids.get(0), "<metadata>0</metadata>");
+        cache.put(ids.get(1), "<metadata>1</metadata>");
+        cache.close();
+        File dataFile = new File(cacheDirectory, "datastreams.dat");
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+
+
+        cache = new DatastreamCache(cacheDirectory, domsClient, COLLECTION, VIEW_ANGLE);
+        cache.put(ids.get(1), "<metadata>2</metadata>");
+        cache.close();
+        cache = new DatastreamCache(cacheDirectory, domsClient, COLLECTION, VIEW_ANGLE);
+
+
+
+        assertEquals(cache.get(ids.get(0)), "<metadata>0</metadata>");
+        assertEquals(cache.get(ids.get(1)), "<metadata>2</metadata>");
+        assertNull(cache.get("uuid:unknown"));
+        cache.close();
+    }
+
+    @Test
+    public void test_open_compactsReplacedAndRemovedContents() throws Exception {
+        List<String> ids = centralWebservice.createObjects(4, "<metadata/>", "A");
+        DatastreamCache cache = new DatastreamCache(cacheDirectory, domsClient, COLLECTION, VIEW_ANGLE);
+        for (int i = 0; i < 5; i++) {
+            for (String id : ids) {
+                cache.put(id, "<metadata>" + i + "</metadata>");
+            }
+        }
+        cache.remove(ids.get(3));
+        cache.close();
+        File dataFile = new File(cacheDirectory, "datastreams.dat");
+        long uncompactedLength = dataFile.length();
+
+
+
+        cache = new DatastreamCache(cacheDirectory, domsClient, COLLECTION, VIEW_ANGLE);
+        long compactedLength = dataFile.length();
+        cache.put(ids.get(3), "<metadata>5</metadata>");
+        cache.close();
+        cache = new DatastreamCache(cacheDirectory, domsClient, COLLECTION, VIEW_ANGLE);
+
+
+
+        // Only the latest records of the three cached objects are kept, each a length, id, length and contents.
+        long recordLength = 4 + ids.get(0).length() + 4 + "<metadata>4</metadata>".length();
+        assertTrue(uncompactedLength > 20 * recordLength);
+        assertEquals(compactedLength, 3 * recordLength);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(cache.get(ids.get(i)), "<metadata>4</metadata>");
+        }
+        assertEquals(cache.get(ids.get(3)), "<metadata>5</metadata>");
+        assertEquals(cacheDirectory.list().length, 2);
+        cache.close();
+    }
+
+    private List<CommercialMetadata> retrieveWithCache(List<String> ids) {
+        DatastreamCache cache = new DatastreamCache(cacheDirectory, domsClient, COLLECTION, VIEW_ANGLE);
+        DOMSCommercialMetadataQuerier querier = new DOMSCommercialMetadataQuerier(domsClient, 4, 8);
+        querier.setDatastreamCache(cache);
+        try {
+            return querier.retrieveMetadata(ids);
+        } finally {
+            querier.close();
+            cache.close();
+        }
+    }
+}
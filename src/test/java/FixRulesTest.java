@@ -0,0 +1,105 @@
+import dk.statsbiblioteket.reklamefixer.CommercialFixer;
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.configuration.InitializationFailedException;
+import dk.statsbiblioteket.reklamefixer.configuration.PropertyBasedRegistrarConfiguration;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataQuerier;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataUpdater;
+import dk.statsbiblioteket.reklamefixer.rules.FixAction;
+import dk.statsbiblioteket.reklamefixer.rules.FixCondition;
+import dk.statsbiblioteket.reklamefixer.rules.FixRule;
+import dk.statsbiblioteket.reklamefixer.rules.FixRules;
+import dk.statsbiblioteket.util.Strings;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class FixRulesTest {
+
+    @Test
+    public void test_getFixRules_readsRulesInOrder() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("doms-reklamefixer.fixRules", "publishers, titles");
+        properties.setProperty("doms-reklamefixer.fixRule.publishers.conditions", "hasInstantiation");
+        properties.setProperty("doms-reklamefixer.fixRule.publishers.actions", "insertTv2Info");
+        properties.setProperty("doms-reklamefixer.fixRule.titles.assetType", "Biografreklamefilm");
+        properties.setProperty("doms-reklamefixer.fixRule.titles.conditions", "hasAlternativeTitle, !hasInstantiation");
+        properties.setProperty("doms-reklamefixer.fixRule.titles.actions", "moveAlternativeTitle,insertTv2Info");
+
+
+
+        FixRules fixRules = createConfiguration(properties).getFixRules();
+
+
+
+        List<FixRule> rules = fixRules.getRules();
+        assertEquals(rules.size(), 2);
+        assertEquals(rules.get(0).getName(), "publishers");
+        assertNull(rules.get(0).getAssetType());
+        assertEquals(rules.get(0).getConditions(), Collections.singletonMap(FixCondition.HAS_INSTANTIATION, true));
+        assertEquals(rules.get(1).getAssetType(), "Biografreklamefilm");
+        assertEquals(rules.get(1).getConditions().get(FixCondition.HAS_ALTERNATIVE_TITLE), Boolean.TRUE);
+        assertEquals(rules.get(1).getConditions().get(FixCondition.HAS_INSTANTIATION), Boolean.FALSE);
+        assertEquals(rules.get(1).getActions(),
+                Arrays.asList(FixAction.MOVE_ALTERNATIVE_TITLE, FixAction.INSERT_TV2_INFO));
+        // Rules for all asset types are included for every asset type, in their place in the order.
+        assertEquals(fixRules.getRules("Biografreklamefilm"), rules);
+        assertEquals(fixRules.getRules("Tv2reklamefilm"), rules.subList(0, 1));
+    }
+
+    @Test(expectedExceptions = InitializationFailedException.class)
+    public void test_getFixRules_rejectsUnknownAction() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("doms-reklamefixer.fixRules", "broken");
+        properties.setProperty("doms-reklamefixer.fixRule.broken.actions", "deleteEverything");
+
+
+
+        createConfiguration(properties).getFixRules();
+    }
+
+    @Test
+    public void test_fixAllCommercials_appliesMatchingRules() throws Exception {
+        String metadataString = Strings.flush(getClass().getResourceAsStream("/updated-cinema-metadata-example.xml"));
+        CommercialMetadata metadata = new CommercialMetadata("uuid:1", metadataString);
+        DOMSCommercialMetadataQuerier querier = mock(DOMSCommercialMetadataQuerier.class);
+        DOMSCommercialMetadataUpdater updater = mock(DOMSCommercialMetadataUpdater.class);
+        when(querier.retrieveMetadata(any())).thenReturn(Collections.singletonList(metadata));
+        CommercialFixer commercialFixer = new CommercialFixer(querier, updater, Collections.singletonList("uuid:1"));
+        commercialFixer.setFixRules(new FixRules(Arrays.asList(
+                new FixRule("publishers", null, FixAction.INSERT_TV2_INFO),
+                new FixRule("never", "Biografreklamefilm",
+                        Collections.singletonMap(FixCondition.HAS_INSTANTIATION, false),
+                        Collections.singletonList(FixAction.MOVE_ALTERNATIVE_TITLE)))));
+
+
+
+        commercialFixer.fixAllCommercials();
+
+
+
+        // The cinema commercial gets TV 2 publishers from the rule for all asset types.
+        verify(updater).updateMetadata(Collections.singletonList(metadata));
+        assertTrue(metadata.getMetadata().contains("tv2d"));
+        assertFalse(metadata.insertTv2Info());
+    }
+
+    private PropertyBasedRegistrarConfiguration createConfiguration(Properties properties) throws Exception {
+        ByteArrayOutputStream propertiesBytes = new ByteArrayOutputStream();
+        properties.store(propertiesBytes, null);
+        return new PropertyBasedRegistrarConfiguration(new ByteArrayInputStream(propertiesBytes.toByteArray()));
+    }
+}
@@ -0,0 +1,459 @@
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.CentralWebservice;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidCredentialsException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.InvalidResourceException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.Link;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.Method;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.MethodFailedException;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.ObjectProfile;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.Pair;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.RecordDescription;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.Relation;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.SearchResultList;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.User;
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.ViewBundle;
+
+import javax.jws.WebService;
+import javax.xml.ws.Endpoint;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the DOMS central web service, published as a real SOAP endpoint so a DOMSClient can be
+ * pointed at it without a DOMS installation.
+ *
+ * It serves PBCORE datastreams for synthetic objects. Each operation can be given a latency and an error rate, and
+ * the time spent in each operation is recorded, so runs can be measured against realistic response times.
+ */
+@WebService(
+        endpointInterface = "dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.CentralWebservice",
+        targetNamespace = "http://central.doms.statsbiblioteket.dk/",
+        serviceName = "CentralWebserviceService",
+        portName = "CentralWebservicePort")
+public class LocalCentralWebservice implements CentralWebservice {
+
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> views = new ConcurrentHashMap<>();
+    private final Map<String, Long> latencies = new ConcurrentHashMap<>();
+    private final Map<String, Double> errorRates = new ConcurrentHashMap<>();
+    private final Map<String, List<Long>> operationTimes = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> modifyRequests = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+    private Endpoint endpoint;
+    private ExecutorService executor;
+    private String address;
+
+    /**
+     * Publishes the stand-in on a free local port.
+     * @return the WSDL URL of the stand-in.
+     */
+    public String start() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        address = "http://localhost:" + port + "/centralWebservice-service/central/";
+        // Without TCP_NODELAY, small responses wait for delayed acknowledgements and every call takes ~40ms.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        executor = Executors.newCachedThreadPool();
+        endpoint = Endpoint.create(this);
+        // The default executor answers one request at a time, which would hide concurrency in the client.
+        endpoint.setExecutor(executor);
+        endpoint.publish(address);
+        return address + "?wsdl";
+    }
+
+    public void stop() {
+        if (endpoint != null) {
+            endpoint.stop();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Creates objects with the given PBCORE contents and state.
+     * @return the ids of the created objects.
+     */
+    public List<String> createObjects(int count, String contents, String state) {
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String pid = "uuid:" + UUID.randomUUID();
+            objects.put(pid, new StoredObject(contents, state, clock.incrementAndGet()));
+            result.add(pid);
+        }
+        return result;
+    }
+
+    /**
+     * Puts the objects in the same view, so the view bundle of each of them holds all of them.
+     */
+    public void groupInView(List<String> pids) {
+        List<String> view = new ArrayList<>(pids);
+        for (String pid : pids) {
+            views.put(pid, view);
+        }
+    }
+
+    public String getContents(String pid) {
+        return objects.get(pid).contents;
+    }
+
+    public String getState(String pid) {
+        return objects.get(pid).state;
+    }
+
+    /**
+     * Sets the time each call of the operation takes before it is answered.
+     */
+    public void setLatency(String operation, long millis) {
+        latencies.put(operation, millis);
+    }
+
+    /**
+     * Sets the fraction of calls of the operation that fail with a MethodFailedException.
+     */
+    public void setErrorRate(String operation, double rate) {
+        errorRates.put(operation, rate);
+    }
+
+    /**
+     * @return the time in nanoseconds spent in each call of each operation, by operation name.
+     */
+    public Map<String, List<Long>> getOperationTimes() {
+        Map<String, List<Long>> result = new TreeMap<>();
+        operationTimes.forEach((operation, times) -> {
+            synchronized (times) {
+                result.put(operation, new ArrayList<>(times));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the contents sent in each call of modifyDatastream for the object, including calls that failed.
+     */
+    public List<String> getModifyRequests(String pid) {
+        List<String> requests = modifyRequests.getOrDefault(pid, Collections.emptyList());
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    /**
+     * Simulates the latency and failures configured for the operation and records the time spent.
+     */
+    private void enter(String operation) throws MethodFailedException {
+        long start = System.nanoTime();
+        try {
+            Long latency = latencies.get(operation);
+            if (latency != null && latency > 0) {
+                Thread.sleep(latency);
+            }
+            Double errorRate = errorRates.get(operation);
+            if (errorRate != null && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                throw new MethodFailedException("Injected failure of " + operation, "");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MethodFailedException("Interrupted", "");
+        } finally {
+            List<Long> times = operationTimes.computeIfAbsent(operation, key -> new ArrayList<>());
+            synchronized (times) {
+                times.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private StoredObject get(String pid) throws InvalidResourceException {
+        StoredObject object = objects.get(pid);
+        if (object == null) {
+            throw new InvalidResourceException("Unknown object " + pid, "");
+        }
+        return object;
+    }
+
+    private MethodFailedException unsupported(String operation) {
+        return new MethodFailedException(operation + " is not supported by the local stand-in", "");
+    }
+
+    @Override
+    public String getDatastreamContents(String pid, String datastream)
+            throws InvalidCredentialsException, InvalidResourceException, MethodFailedException {
+        enter("getDatastreamContents");
+        return get(pid).contents;
+    }
+
+    @Override
+    public void modifyDatastream(String pid, String datastream, String contents, String comment)
+            throws InvalidCredentialsException, InvalidResourceException, MethodFailedException {
+        List<String> requests = modifyRequests.computeIfAbsent(pid, key -> new ArrayList<>());
+        synchronized (requests) {
+            requests.add(contents);
+        }
+        enter("modifyDatastream");
+        StoredObject object = get(pid);
+        synchronized (object) {
+            if (!"I".equals(object.state)) {
+                throw new MethodFailedException("Object " + pid + " is not in progress", "");
+            }
+            object.contents = contents;
+            object.modified = clock.incrementAndGet();
+        }
+    }
+
+    @Override
+    public ObjectProfile getObjectProfile(String pid)
+            throws InvalidCredentialsException, InvalidResourceException, MethodFailedException {
+        enter("getObjectProfile");
+        StoredObject object = get(pid);
+        ObjectProfile profile = new ObjectProfile();
+        profile.setPid(pid);
+        profile.setState(object.state);
+        profile.setModifiedDate(object.modified);
+        return profile;
+    }
+
+    @Override
+    public void markInProgressObject(List<String> pids, String comment)
+            throws InvalidCredentialsException, InvalidResourceException, MethodFailedException {
+        enter("markInProgressObject");
+        setStates(pids, "I");
+    }
+
+    @Override
+    public void markPublishedObject(List<String> pids, String comment)
+            throws InvalidCredentialsException, InvalidResourceException, MethodFailedException {
+        enter("markPublishedObject");
+        setStates(pids, "A");
+    }
+
+    @Override
+    public void deleteObject(List<String> pids, String comment)
+            throws InvalidCredentialsException, InvalidResourceException, MethodFailedException {
+        enter("deleteObject");
+        setStates(pids, "D");
+    }
+
+    private void setStates(List<String> pids, String state) throws InvalidResourceException {
+        for (String pid : pids) {
+            get(pid);
+        }
+        for (String pid : pids) {
+            StoredObject object = objects.get(pid);
+            synchronized (object) {
+                object.state = state;
+                object.modified = clock.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public String newObject(String pid, List<String> oldID, String comment)
+            throws InvalidCredentialsException, InvalidResourceException, MethodFailedException {
+        enter("newObject");
+        return createObjects(1, "", "I").get(0);
+    }
+
+    @Override
+    public List<RecordDescription> getIDsModified(long since, String collectionPid, String viewAngle, String state,
+                                                  Integer offset, Integer limit)
+            throws InvalidCredentialsException, MethodFailedException {
+        enter("getIDsModified");
+        List<RecordDescription> records = new ArrayList<>();
+        objects.forEach((pid, object) -> {
+            if (object.modified > since && (state == null || state.equals(object.state))) {
+                RecordDescription record = new RecordDescription();
+                record.setPid(pid);
+                record.setCollectionPid(collectionPid);
+                record.setDate(object.modified);
+                record.setState(object.state);
+                records.add(record);
+            }
+        });
+        records.sort(Comparator.comparingLong(RecordDescription::getDate));
+        int from = Math.min(offset == null ? 0 : offset, records.size());
+        int to = limit == null ? records.size() : Math.min(from + limit, records.size());
+        return new ArrayList<>(records.subList(from, to));
+    }
+
+    @Override
+    public long getLatestModified(String collectionPid, String viewAngle, String state)
+            throws InvalidCredentialsException, MethodFailedException {
+        enter("getLatestModified");
+        long latest = 0;
+        for (StoredObject object : objects.values()) {
+            if (state == null || state.equals(object.state)) {
+                latest = Math.max(latest, object.modified);
+            }
+        }
+        return latest;
+    }
+
+    @Override
+    public void setObjectLabel(String pid, String name, String comment) throws MethodFailedException {
+        throw unsupported("setObjectLabel");
+    }
+
+    @Override
+    public void addFileFromPermanentURL(String pid, String filename, String md5Sum, String permanentURL,
+                                        String formatURI, String comment) throws MethodFailedException {
+        throw unsupported("addFileFromPermanentURL");
+    }
+
+    @Override
+    public String getFileObjectWithURL(String url) throws MethodFailedException {
+        throw unsupported("getFileObjectWithURL");
+    }
+
+    @Override
+    public void addRelation(String pid, Relation relation, String comment)
+            throws InvalidCredentialsException, InvalidResourceException, MethodFailedException {
+        enter("addRelation");
+        get(pid);
+    }
+
+    @Override
+    public List<Relation> getRelations(String pid) throws MethodFailedException {
+        throw unsupported("getRelations");
+    }
+
+    @Override
+    public List<Relation> getNamedRelations(String pid, String predicate) throws MethodFailedException {
+        throw unsupported("getNamedRelations");
+    }
+
+    @Override
+    public List<Relation> getInverseRelations(String pid) throws MethodFailedException {
+        throw unsupported("getInverseRelations");
+    }
+
+    @Override
+    public List<Relation> getInverseRelationsWithPredicate(String pid, String predicate)
+            throws MethodFailedException {
+        throw unsupported("getInverseRelationsWithPredicate");
+    }
+
+    @Override
+    public void deleteRelation(String pid, Relation relation, String comment) throws MethodFailedException {
+        throw unsupported("deleteRelation");
+    }
+
+    @Override
+    public ViewBundle getViewBundle(String pid, String viewAngle)
+            throws InvalidResourceException, MethodFailedException {
+        enter("getViewBundle");
+        get(pid);
+        StringBuilder contents = new StringBuilder();
+        contents.append("<dobundle:digitalObjectBundle"
+                + " xmlns:dobundle=\"http://doms.statsbiblioteket.dk/types/digitalobjectbundle/default/0/1/#\""
+                + " xmlns:foxml=\"info:fedora/fedora-system:def/foxml#\">\n");
+        for (String viewPid : views.getOrDefault(pid, Collections.singletonList(pid))) {
+            String datastream = get(viewPid).contents.replaceFirst("^\\s*<\\?xml[^>]*\\?>", "");
+            contents.append("<foxml:digitalObject PID=\"").append(viewPid).append("\" VERSION=\"1.1\">\n");
+            contents.append("<foxml:datastream ID=\"DC\" CONTROL_GROUP=\"X\"><foxml:datastreamVersion ID=\"DC.0\">"
+                    + "<foxml:xmlContent><dc/></foxml:xmlContent></foxml:datastreamVersion></foxml:datastream>\n");
+            if (!datastream.trim().isEmpty()) {
+                // An outdated version ahead of the current one, as DOMS keeps the versions of a datastream.
+                contents.append("<foxml:datastream ID=\"PBCORE\" CONTROL_GROUP=\"X\">\n"
+                        + "<foxml:datastreamVersion ID=\"PBCORE.0\" CREATED=\"2015-06-01T12:00:00.000Z\">"
+                        + "<foxml:xmlContent><outdated/></foxml:xmlContent></foxml:datastreamVersion>\n"
+                        + "<foxml:datastreamVersion ID=\"PBCORE.1\" CREATED=\"2016-06-01T12:00:00.000Z\">"
+                        + "<foxml:xmlContent>\n");
+                contents.append(datastream);
+                contents.append("\n</foxml:xmlContent></foxml:datastreamVersion>\n</foxml:datastream>\n");
+            }
+            contents.append("</foxml:digitalObject>\n");
+        }
+        contents.append("</dobundle:digitalObjectBundle>\n");
+        ViewBundle bundle = new ViewBundle();
+        bundle.setId(pid);
+        bundle.setContents(contents.toString());
+        return bundle;
+    }
+
+    @Override
+    public ViewBundle getViewBundleFromSpecificTime(String pid, String viewAngle, long asOfTime)
+            throws MethodFailedException {
+        throw unsupported("getViewBundleFromSpecificTime");
+    }
+
+    @Override
+    public List<String> findObjectFromDCIdentifier(String string) throws MethodFailedException {
+        throw unsupported("findObjectFromDCIdentifier");
+    }
+
+    @Override
+    public SearchResultList findObjects(String query, int offset, int pageSize) throws MethodFailedException {
+        throw unsupported("findObjects");
+    }
+
+    @Override
+    public void lockForWriting() {
+    }
+
+    @Override
+    public void unlockForWriting() {
+    }
+
+    @Override
+    public User createTempAdminUser(String username, List<String> roles) throws MethodFailedException {
+        throw unsupported("createTempAdminUser");
+    }
+
+    @Override
+    public List<String> getObjectsInCollection(String collectionPid, String contentModelPid) {
+        List<String> result = new ArrayList<>(objects.keySet());
+        Collections.sort(result);
+        return result;
+    }
+
+    @Override
+    public List<Method> getMethods(String pid) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String invokeMethod(String cmpid, String methodName, List<Pair> parameters)
+            throws MethodFailedException {
+        throw unsupported("invokeMethod");
+    }
+
+    @Override
+    public List<Link> getObjectLinks(String pid, long asOfTime) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the operations that can be given a latency and an error rate.
+     */
+    public static List<String> getSimulatedOperations() {
+        return Arrays.asList("getDatastreamContents", "modifyDatastream", "getObjectProfile",
+                "markInProgressObject", "markPublishedObject", "getIDsModified", "getLatestModified", "getViewBundle");
+    }
+
+    private static class StoredObject {
+        private volatile String contents;
+        private volatile String state;
+        private volatile long modified;
+
+        private StoredObject(String contents, String state, long modified) {
+            this.contents = contents;
+            this.state = state;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import dk.statsbiblioteket.reklamefixer.Outcome;
+import dk.statsbiblioteket.reklamefixer.metrics.LatencyHistogram;
+import dk.statsbiblioteket.reklamefixer.metrics.Metrics;
+import dk.statsbiblioteket.reklamefixer.metrics.OperationMetrics;
+import org.testng.annotations.Test;
+
+import java.io.StringWriter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void test_getValueAtPercentile_withinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+
+
+        for (long value = 1; value <= 10000; value++) {
+            histogram.record(value * 1000);
+        }
+
+
+
+        assertEquals(histogram.getCount(), 10000);
+        assertEquals(histogram.getMax(), 10000000);
+        // Values are reported with an error of at most 1/16.
+        assertWithin(histogram.getValueAtPercentile(50), 5000000);
+        assertWithin(histogram.getValueAtPercentile(99), 9900000);
+        assertEquals(histogram.getValueAtPercentile(100), 10000000);
+        assertEquals(histogram.getMean(), 5000500.0, 0.001);
+    }
+
+    @Test
+    public void test_writeTo_operationsAndOutcomes() throws Exception {
+        Metrics metrics = new Metrics();
+        OperationMetrics operation = metrics.operation("doms.getDatastreamContents");
+
+
+
+        operation.stop(operation.start(), true);
+        operation.stop(operation.start(), false);
+        operation.start();
+        metrics.outcome("uuid:1", Outcome.FETCHED);
+        metrics.outcome("uuid:1", Outcome.UPDATED);
+        metrics.outcome("uuid:2", Outcome.FAILED);
+        StringWriter result = new StringWriter();
+        metrics.writeTo(result);
+
+
+
+        assertEquals(metrics.getProcessedObjects(), 2);
+        assertTrue(result.toString().contains("outcome\tUPDATED\t1"), result.toString());
+        assertTrue(result.toString().contains("operation\tdoms.getDatastreamContents\t1\t1\t1\t"),
+                result.toString());
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertTrue(Math.abs(actual - expected) <= expected / 16, actual + " is not close to " + expected);
+    }
+}
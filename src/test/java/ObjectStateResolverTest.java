@@ -0,0 +1,53 @@
+import dk.statsbiblioteket.doms.reklamefixer.wsgen.centralwebservice.RecordDescription;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSClient;
+import dk.statsbiblioteket.reklamefixer.doms.ObjectStateResolver;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+public class ObjectStateResolverTest {
+
+    @Test
+    public void test_getState_preloadsObjectsModifiedWhilePreloading() throws Exception {
+        LocalCentralWebservice centralWebservice = new LocalCentralWebservice();
+        List<String> ids = centralWebservice.createObjects(10, "<metadata/>", "A");
+        DOMSClient domsClient = mock(DOMSClient.class);
+        AtomicInteger pages = new AtomicInteger();
+        when(domsClient.getIDsModified(anyLong(), anyString(), anyString(), anyInt(), anyInt())).thenAnswer(
+                invocation -> {
+                    Object[] arguments = invocation.getArguments();
+                    List<RecordDescription> page = centralWebservice.getIDsModified((Long) arguments[0],
+                            (String) arguments[1], (String) arguments[2], null, (Integer) arguments[3],
+                            (Integer) arguments[4]);
+                    if (pages.incrementAndGet() == 1) {
+                        // Modifying an object moves it to the end of the objects ordered by modification time.
+                        centralWebservice.markInProgressObject(Collections.singletonList(ids.get(0)), "");
+                    }
+                    return page;
+                });
+        ObjectStateResolver resolver = new ObjectStateResolver(domsClient, "doms:Root_Collection", "GUI", 4);
+
+
+
+        for (String id : ids) {
+            assertEquals(resolver.getState(id), centralWebservice.getState(id));
+        }
+
+
+
+        // All states were preloaded, none had to be looked up one at a time.
+        verify(domsClient, never()).getState(anyString());
+        assertEquals(resolver.getState(ids.get(0)), "I");
+    }
+}
@@ -0,0 +1,76 @@
+import dk.statsbiblioteket.reklamefixer.Outcome;
+import dk.statsbiblioteket.reklamefixer.journal.RunJournal;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class RunJournalTest {
+
+    private File journalFile;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        journalFile = File.createTempFile("doms-reklamefixer-journal", ".txt");
+        journalFile.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        journalFile.delete();
+    }
+
+    @Test
+    public void test_readCompletedUuids_usesLatestOutcome() throws Exception {
+        try (RunJournal journal = new RunJournal(journalFile, 2, 60000)) {
+            journal.outcome("uuid:1", Outcome.FETCHED);
+            journal.outcome("uuid:1", Outcome.UPDATED);
+            journal.outcome("uuid:2", Outcome.FETCHED);
+            journal.outcome("uuid:2", Outcome.FAILED);
+            journal.outcome("uuid:3", Outcome.UNCHANGED);
+            journal.outcome("uuid:4", Outcome.NOT_ACTIVE);
+            journal.outcome("uuid:5", Outcome.FETCHED);
+        }
+        // A later run retries a failed object.
+        try (RunJournal journal = new RunJournal(journalFile, 2, 60000)) {
+            journal.outcome("uuid:2", Outcome.UPDATED);
+        }
+
+
+
+        Set<String> completedUuids = RunJournal.readCompletedUuids(journalFile);
+
+
+
+        assertEquals(completedUuids, new HashSet<>(Arrays.asList("uuid:1", "uuid:2", "uuid:3", "uuid:4")));
+    }
+
+    @Test
+    public void test_readCompletedUuids_ignoresLineCutOffByCrash() throws Exception {
+        try (Writer writer = new FileWriter(journalFile)) {
+            writer.write("uuid:1\tUPDATED\nuuid:2\tUPDA");
+        }
+
+
+
+        Set<String> completedUuids = RunJournal.readCompletedUuids(journalFile);
+
+
+
+        assertEquals(completedUuids, new HashSet<>(Arrays.asList("uuid:1")));
+    }
+
+    @Test
+    public void test_readCompletedUuids_whenJournalDoesNotExist() {
+        assertTrue(RunJournal.readCompletedUuids(journalFile).isEmpty());
+    }
+}
@@ -0,0 +1,141 @@
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.MetadataEngine;
+import dk.statsbiblioteket.reklamefixer.StaxCommercialMetadata;
+import dk.statsbiblioteket.util.Strings;
+import org.custommonkey.xmlunit.DetailedDiff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class StaxCommercialMetadataTest {
+
+    @BeforeMethod
+    public void setUp() {
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLUnit.setIgnoreComments(true);
+    }
+
+    @Test
+    public void test_moveAlternativeTitle_forCinemaMetadataExample() throws Exception {
+        String metadataString = read("/cinema-metadata-example.xml");
+        CommercialMetadata domMetadata = new CommercialMetadata("uuid:1", metadataString);
+        CommercialMetadata staxMetadata = new StaxCommercialMetadata("uuid:1", metadataString);
+
+        assertEquals(staxMetadata.getAssetType(), domMetadata.getAssetType());
+        assertEquals(staxMetadata.getAlternativeTitle(), domMetadata.getAlternativeTitle());
+        assertEquals(staxMetadata.getDescription(), domMetadata.getDescription());
+
+
+
+        assertTrue(domMetadata.moveAlternativeTitle());
+        assertTrue(staxMetadata.moveAlternativeTitle());
+
+
+
+        assertIdentical(read("/updated-cinema-metadata-example.xml"), staxMetadata.getMetadata());
+        assertSameBytes(domMetadata, staxMetadata);
+        assertEquals(staxMetadata.getDescription(), domMetadata.getDescription());
+        assertFalse(staxMetadata.moveAlternativeTitle());
+    }
+
+    @Test
+    public void test_insertTv2Info_forTv2MetadataExample() throws Exception {
+        String metadataString = read("/tv2-metadata-example.xml");
+        CommercialMetadata domMetadata = new CommercialMetadata("uuid:1", metadataString);
+        CommercialMetadata staxMetadata = new StaxCommercialMetadata("uuid:1", metadataString);
+
+
+
+        assertTrue(domMetadata.insertTv2Info());
+        assertTrue(domMetadata.moveAlternativeTitle());
+        assertTrue(staxMetadata.insertTv2Info());
+        assertTrue(staxMetadata.moveAlternativeTitle());
+
+
+
+        assertIdentical(read("/updated-tv2-metadata-example.xml"), staxMetadata.getMetadata());
+        assertSameBytes(domMetadata, staxMetadata);
+        assertFalse(staxMetadata.insertTv2Info());
+    }
+
+    @Test
+    public void test_fixes_forUpdatedMetadataExamples() throws Exception {
+        CommercialMetadata cinemaMetadata =
+                new StaxCommercialMetadata("uuid:1", read("/updated-cinema-metadata-example.xml"));
+        CommercialMetadata tv2Metadata =
+                new StaxCommercialMetadata("uuid:2", read("/updated-tv2-metadata-example.xml"));
+
+
+
+        assertFalse(cinemaMetadata.moveAlternativeTitle());
+        assertFalse(tv2Metadata.insertTv2Info());
+        assertFalse(tv2Metadata.moveAlternativeTitle());
+
+
+
+        // The empty titles of the fixed metadata are written as empty elements, as by the DOM engine.
+        assertSameBytes(new CommercialMetadata("uuid:1", read("/updated-cinema-metadata-example.xml")),
+                cinemaMetadata);
+        assertSameBytes(new CommercialMetadata("uuid:2", read("/updated-tv2-metadata-example.xml")), tv2Metadata);
+    }
+
+    @Test
+    public void test_moveAlternativeTitle_leavesMetadataWithoutDescription() throws Exception {
+        String metadataString = read("/cinema-metadata-example.xml")
+                .replaceAll("(?s)\\s*<namespace:pbcoreDescription>.*?</namespace:pbcoreDescription>", "");
+        assertFalse(metadataString.contains("pbcoreDescription"));
+        for (MetadataEngine engine : MetadataEngine.values()) {
+            CommercialMetadata metadata = engine.create("uuid:1", metadataString);
+
+
+
+            boolean changed = metadata.moveAlternativeTitle();
+
+
+
+            assertFalse(changed, engine.name());
+            assertEquals(metadata.getAlternativeTitle(), "Example description", engine.name());
+            assertIdentical(metadataString, metadata.getMetadata());
+        }
+    }
+
+    @Test
+    public void test_getAssetType_isNullForMetadataWithoutAssetType() throws Exception {
+        String metadataString = read("/cinema-metadata-example.xml")
+                .replaceAll("\\s*<namespace:pbcoreAssetType>.*?</namespace:pbcoreAssetType>", "");
+        assertFalse(metadataString.contains("pbcoreAssetType"));
+        for (MetadataEngine engine : MetadataEngine.values()) {
+            CommercialMetadata metadata = engine.create("uuid:1", metadataString);
+
+
+
+            String assetType = metadata.getAssetType();
+
+
+
+            assertNull(assetType, engine.name());
+            assertNull(metadata.getAssetType(), engine.name());
+        }
+    }
+
+    private String read(String resource) throws Exception {
+        return Strings.flush(getClass().getResourceAsStream(resource));
+    }
+
+    private void assertSameBytes(CommercialMetadata domMetadata, CommercialMetadata staxMetadata) {
+        assertTrue(Arrays.equals(staxMetadata.getMetadataBytes(), domMetadata.getMetadataBytes()),
+                "Expected\n" + domMetadata.getMetadata() + "\nbut was\n" + staxMetadata.getMetadata());
+    }
+
+    private void assertIdentical(String expected, String actual) throws Exception {
+        DetailedDiff diff = new DetailedDiff(XMLUnit.compareXML(expected, actual));
+        assertTrue(diff.identical(), diff.getAllDifferences().toString());
+    }
+}
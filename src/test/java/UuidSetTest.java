@@ -0,0 +1,97 @@
+import dk.statsbiblioteket.reklamefixer.uuids.UuidSet;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class UuidSetTest {
+
+    @Test
+    public void test_add_skipsDuplicatesAndKeepsOrder() {
+        List<String> ids = Arrays.asList(
+                "uuid:26f5fef1-8cdd-468e-b6c4-cdd6c046573e",
+                "uuid:00000000-0000-0000-0000-000000000000",
+                "uuid:ffffffff-ffff-ffff-ffff-ffffffffffff",
+                "uuid:26f5fef1-8cdd-468e-b6c4-cdd6c046573e",
+                "uuid:00000000-0000-0000-0000-000000000001",
+                "uuid:00000000-0000-0000-0000-000000000000");
+        UuidSet uuidSet = new UuidSet();
+
+
+
+        List<Boolean> added = new ArrayList<>();
+        for (String id : ids) {
+            added.add(uuidSet.add(id));
+        }
+
+
+
+        assertEquals(added, Arrays.asList(true, true, true, false, true, false));
+        assertEquals(uuidSet.size(), 4);
+        assertEquals(new ArrayList<>(uuidSet), Arrays.asList(
+                "uuid:26f5fef1-8cdd-468e-b6c4-cdd6c046573e",
+                "uuid:00000000-0000-0000-0000-000000000000",
+                "uuid:ffffffff-ffff-ffff-ffff-ffffffffffff",
+                "uuid:00000000-0000-0000-0000-000000000001"));
+        assertTrue(uuidSet.contains("uuid:ffffffff-ffff-ffff-ffff-ffffffffffff"));
+        assertFalse(uuidSet.contains("uuid:ffffffff-ffff-ffff-ffff-fffffffffffe"));
+    }
+
+    @Test
+    public void test_add_keepsIdsOfOtherFormsUnchanged() {
+        UuidSet uuidSet = new UuidSet(Arrays.asList(
+                "uuid:1", "uuid:26F5FEF1-8CDD-468E-B6C4-CDD6C046573E", "uuid:26f5fef1-8cdd-468e-b6c4-cdd6c046573e",
+                "doms:Root_Collection", "uuid:1"));
+
+
+
+        List<String> result = new ArrayList<>(uuidSet);
+
+
+
+        // Upper case ids are not the same id to DOMS, so they are kept apart from the lower case id
+        assertEquals(result, Arrays.asList("uuid:1", "uuid:26F5FEF1-8CDD-468E-B6C4-CDD6C046573E",
+                "uuid:26f5fef1-8cdd-468e-b6c4-cdd6c046573e", "doms:Root_Collection"));
+        assertTrue(uuidSet.contains("doms:Root_Collection"));
+        assertFalse(uuidSet.contains("uuid:2"));
+    }
+
+    @Test
+    public void test_addAndRemove_behaveLikeLinkedHashSet() {
+        Random random = new Random(42);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            ids.add(i % 100 == 0 ? "uuid:" + i : "uuid:" + new UUID(random.nextLong(), random.nextLong()));
+        }
+        UuidSet uuidSet = new UuidSet();
+        Set<String> expected = new LinkedHashSet<>();
+
+
+
+        for (int i = 0; i < 50000; i++) {
+            String id = ids.get(random.nextInt(ids.size()));
+            if (random.nextInt(3) == 0) {
+                assertEquals(uuidSet.remove(id), expected.remove(id), id);
+            } else {
+                assertEquals(uuidSet.add(id), expected.add(id), id);
+            }
+        }
+
+
+
+        assertEquals(uuidSet.size(), expected.size());
+        assertEquals(new ArrayList<>(uuidSet), new ArrayList<>(expected));
+        for (String id : ids) {
+            assertEquals(uuidSet.contains(id), expected.contains(id), id);
+        }
+    }
+}
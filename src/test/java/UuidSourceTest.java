@@ -0,0 +1,134 @@
+import dk.statsbiblioteket.reklamefixer.configuration.PropertyBasedRegistrarConfiguration;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSClient;
+import dk.statsbiblioteket.reklamefixer.journal.HighWaterMark;
+import dk.statsbiblioteket.reklamefixer.uuids.LineUuidSource;
+import dk.statsbiblioteket.reklamefixer.uuids.ModifiedSinceUuidSource;
+import dk.statsbiblioteket.reklamefixer.uuids.UuidSource;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.testng.Assert.assertEquals;
+
+public class UuidSourceTest {
+
+    @Test
+    public void test_lineUuidSource_readsFirstColumnOfNonBlankLines() {
+        String lines = "uuid:1\n\nuuid:2\tretrieve\tMethodFailedException: Timeout\n  uuid:3  \n";
+        UuidSource uuidSource = new LineUuidSource("test",
+                new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8)));
+
+
+
+        List<String> result = new ArrayList<>();
+        uuidSource.forEach(result::add);
+
+
+
+        assertEquals(result, Arrays.asList("uuid:1", "uuid:2", "uuid:3"));
+        assertEquals(uuidSource.size(), UuidSource.UNKNOWN_SIZE);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void test_lineUuidSource_canOnlyBeIteratedOnce() {
+        UuidSource uuidSource = new LineUuidSource("test", new ByteArrayInputStream(new byte[0]));
+        uuidSource.iterator();
+
+
+
+        uuidSource.iterator();
+    }
+
+    @Test
+    public void test_modifiedSinceUuidSource_returnsEachObjectOnceWhileObjectsAreModified() throws Exception {
+        LocalCentralWebservice centralWebservice = new LocalCentralWebservice();
+        try {
+            DOMSClient domsClient = createClient(centralWebservice);
+            List<String> ids = centralWebservice.createObjects(25, "<metadata/>", "A");
+            UuidSource uuidSource = new ModifiedSinceUuidSource(domsClient, "doms:Root_Collection", "GUI", 0, 4);
+
+
+
+            List<String> result = new ArrayList<>();
+            for (String uuid : uuidSource) {
+                result.add(uuid);
+                // Modifying an object moves it to the end of the objects ordered by modification time.
+                domsClient.markInProgressObject(uuid);
+                domsClient.markPublishedObject(uuid);
+            }
+
+
+
+            assertEquals(result, ids);
+        } finally {
+            centralWebservice.stop();
+        }
+    }
+
+    @Test
+    public void test_modifiedSinceUuidSource_returnsObjectsModifiedAfterPreviousRun() throws Exception {
+        LocalCentralWebservice centralWebservice = new LocalCentralWebservice();
+        try {
+            DOMSClient domsClient = createClient(centralWebservice);
+            List<String> firstIds = centralWebservice.createObjects(5, "<metadata/>", "A");
+            ModifiedSinceUuidSource firstRun = new ModifiedSinceUuidSource(domsClient, "doms:Root_Collection", "GUI",
+                    0, 4);
+            List<String> firstResult = new ArrayList<>();
+            firstRun.forEach(firstResult::add);
+            List<String> secondIds = centralWebservice.createObjects(3, "<metadata/>", "A");
+            File highWaterMarkFile = File.createTempFile("high-water-mark", ".txt");
+            highWaterMarkFile.delete();
+            HighWaterMark highWaterMark = new HighWaterMark(highWaterMarkFile);
+            assertEquals(highWaterMark.read(), 0);
+            highWaterMark.write(firstRun.getUntil());
+
+
+
+            UuidSource secondRun = new ModifiedSinceUuidSource(domsClient, "doms:Root_Collection", "GUI",
+                    new HighWaterMark(highWaterMarkFile).read(), 4);
+            List<String> secondResult = new ArrayList<>();
+            secondRun.forEach(secondResult::add);
+
+
+
+            assertEquals(firstResult, firstIds);
+            assertEquals(secondResult, secondIds);
+            highWaterMarkFile.delete();
+        } finally {
+            centralWebservice.stop();
+        }
+    }
+
+    @Test
+    public void test_of_knowsItsSize() {
+        UuidSource uuidSource = UuidSource.of(Arrays.asList("uuid:1", "uuid:2"));
+
+
+
+        List<String> result = new ArrayList<>();
+        uuidSource.forEach(result::add);
+        uuidSource.forEach(result::add);
+
+
+
+        assertEquals(uuidSource.size(), 2);
+        assertEquals(result, Arrays.asList("uuid:1", "uuid:2", "uuid:1", "uuid:2"));
+    }
+
+    private DOMSClient createClient(LocalCentralWebservice centralWebservice) throws Exception {
+        Properties properties = new Properties();
+        properties.load(getClass().getResourceAsStream("/doms-reklamefixer-test.properties"));
+        properties.setProperty("doms-reklamefixer.domsWSAPIEndpoint", centralWebservice.start());
+        ByteArrayOutputStream propertiesBytes = new ByteArrayOutputStream();
+        properties.store(propertiesBytes, null);
+        return new DOMSClient(new PropertyBasedRegistrarConfiguration(
+                new ByteArrayInputStream(propertiesBytes.toByteArray())));
+    }
+}
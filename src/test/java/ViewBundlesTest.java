@@ -0,0 +1,140 @@
+import dk.statsbiblioteket.reklamefixer.CommercialMetadata;
+import dk.statsbiblioteket.reklamefixer.configuration.PropertyBasedRegistrarConfiguration;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSClient;
+import dk.statsbiblioteket.reklamefixer.doms.DOMSCommercialMetadataQuerier;
+import dk.statsbiblioteket.reklamefixer.doms.ViewBundles;
+import dk.statsbiblioteket.util.Strings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+public class ViewBundlesTest {
+
+    private static final String VIEW_ANGLE = "SummaVisible";
+
+    private LocalCentralWebservice centralWebservice;
+    private DOMSClient domsClient;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        centralWebservice = new LocalCentralWebservice();
+        Properties properties = new Properties();
+        properties.load(getClass().getResourceAsStream("/doms-reklamefixer-test.properties"));
+        properties.setProperty("doms-reklamefixer.domsWSAPIEndpoint", centralWebservice.start());
+        ByteArrayOutputStream propertiesBytes = new ByteArrayOutputStream();
+        properties.store(propertiesBytes, null);
+        domsClient = new DOMSClient(new PropertyBasedRegistrarConfiguration(
+                new ByteArrayInputStream(propertiesBytes.toByteArray())));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        centralWebservice.stop();
+    }
+
+    @Test
+    public void test_getDatastreams_splitsCurrentVersionOfEachObject() throws Exception {
+        String cinemaMetadata = Strings.flush(getClass().getResourceAsStream("/cinema-metadata-example.xml"));
+        List<String> ids = new ArrayList<>(centralWebservice.createObjects(2, cinemaMetadata, "A"));
+        ids.addAll(centralWebservice.createObjects(1, "", "A"));
+        centralWebservice.groupInView(ids);
+        String bundle = centralWebservice.getViewBundle(ids.get(0), VIEW_ANGLE).getContents();
+
+
+
+        Map<String, String> datastreams = ViewBundles.getDatastreams(bundle, "PBCORE");
+
+
+
+        // The object without a PBCORE datastream is left out.
+        assertEquals(new ArrayList<>(datastreams.keySet()), ids.subList(0, 2));
+        for (String id : ids.subList(0, 2)) {
+            // The datastream is the current version, not the outdated version before it.
+            assertFalse(datastreams.get(id).contains("outdated"));
+            CommercialMetadata metadata = new CommercialMetadata(id, datastreams.get(id));
+            assertEquals(metadata.getAssetType(), "Biografreklamefilm");
+        }
+    }
+
+    @Test
+    public void test_getDatastreams_takesLatestCreatedVersionAsCurrent() {
+        String bundle = "<dobundle:digitalObjectBundle"
+                + " xmlns:dobundle=\"http://doms.statsbiblioteket.dk/types/digitalobjectbundle/default/0/1/#\""
+                + " xmlns:foxml=\"info:fedora/fedora-system:def/foxml#\">"
+                + "<foxml:digitalObject PID=\"uuid:1\"><foxml:datastream ID=\"PBCORE\" CONTROL_GROUP=\"X\">"
+                + version("PBCORE.2", "2016-06-01T12:00:00.000Z", "<version>current</version>")
+                + version("PBCORE.0", "2015-06-01T12:00:00.000Z", "<version>outdated</version>")
+                + version("PBCORE.1", "2016-06-01T13:00:00.000+02:00", "<version>outdated</version>")
+                + "</foxml:datastream></foxml:digitalObject>"
+                + "<foxml:digitalObject PID=\"uuid:2\"><foxml:datastream ID=\"PBCORE\" CONTROL_GROUP=\"X\">"
+                + version("PBCORE.1", "2016-06-01T12:00:00.000Z", "<version>current</version>")
+                + version("PBCORE.0", null, "<version>outdated</version>")
+                + "</foxml:datastream></foxml:digitalObject>"
+                + "</dobundle:digitalObjectBundle>";
+
+
+
+        Map<String, String> datastreams = ViewBundles.getDatastreams(bundle, "PBCORE");
+
+
+
+        // Versions are compared by their time, also when given in another time zone or left out.
+        assertEquals(datastreams.get("uuid:1"), "<version>current</version>");
+        assertEquals(datastreams.get("uuid:2"), "<version>current</version>");
+    }
+
+    @Test
+    public void test_retrieveMetadata_retrievesObjectsInSameViewWithOneCall() throws Exception {
+        String cinemaMetadata = Strings.flush(getClass().getResourceAsStream("/cinema-metadata-example.xml"));
+        String tv2Metadata = Strings.flush(getClass().getResourceAsStream("/tv2-metadata-example.xml"));
+        List<String> cinemaIds = centralWebservice.createObjects(3, cinemaMetadata, "A");
+        List<String> tv2Ids = centralWebservice.createObjects(2, tv2Metadata, "A");
+        centralWebservice.groupInView(cinemaIds);
+        List<String> ids = new ArrayList<>(cinemaIds);
+        ids.addAll(tv2Ids);
+        // A TV 2 commercial shares its view with an object that is not retrieved.
+        String otherId = centralWebservice.createObjects(1, "<other/>", "A").get(0);
+        centralWebservice.groupInView(Arrays.asList(tv2Ids.get(0), otherId));
+        DOMSCommercialMetadataQuerier querier = new DOMSCommercialMetadataQuerier(domsClient);
+        querier.setViewBundleAngle(VIEW_ANGLE);
+
+
+
+        List<CommercialMetadata> result = querier.retrieveMetadata(ids);
+
+
+
+        querier.close();
+        // One bundle for the three cinema commercials, and one for each TV 2 commercial.
+        assertEquals(centralWebservice.getOperationTimes().get("getViewBundle").size(), 3);
+        assertNull(centralWebservice.getOperationTimes().get("getDatastreamContents"));
+        List<String> resultIds = new ArrayList<>();
+        List<String> assetTypes = new ArrayList<>();
+        for (CommercialMetadata metadata : result) {
+            resultIds.add(metadata.getUuid());
+            assetTypes.add(metadata.getAssetType());
+        }
+        assertEquals(resultIds, ids);
+        List<String> expectedAssetTypes = new ArrayList<>(Collections.nCopies(3, "Biografreklamefilm"));
+        expectedAssetTypes.addAll(Collections.nCopies(2, "Tv2reklamefilm"));
+        assertEquals(assetTypes, expectedAssetTypes);
+    }
+
+    private static String version(String id, String created, String contents) {
+        return "<foxml:datastreamVersion ID=\"" + id + "\"" + (created == null ? "" : " CREATED=\"" + created + "\"")
+                + "><foxml:xmlContent>" + contents + "</foxml:xmlContent></foxml:datastreamVersion>";
+    }
+}